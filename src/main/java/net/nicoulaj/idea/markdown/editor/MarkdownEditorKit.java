@@ -31,6 +31,7 @@ import javax.swing.text.ViewFactory;
 import javax.swing.text.html.HTML;
 import javax.swing.text.html.HTMLEditorKit;
 import javax.swing.text.html.ImageView;
+import javax.swing.text.html.StyleSheet;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -68,6 +69,22 @@ public class MarkdownEditorKit extends HTMLEditorKit {
         return new MarkdownEditorKit(document);
     }
 
+    /**
+     * Creates a document which can have its blocks replaced in place.
+     *
+     * @return a new {@link MarkdownPreviewDocument}
+     */
+    @Override
+    public javax.swing.text.Document createDefaultDocument() {
+        final StyleSheet styles = new StyleSheet();
+        styles.addStyleSheet(getStyleSheet());
+        final MarkdownPreviewDocument previewDocument = new MarkdownPreviewDocument(styles);
+        previewDocument.setParser(getParser());
+        previewDocument.setAsynchronousLoadPriority(4);
+        previewDocument.setTokenThreshold(100);
+        return previewDocument;
+    }
+
     /** {@inheritDoc} */
     @Override
     public ViewFactory getViewFactory() {
@@ -0,0 +1,643 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.editor;
+
+import org.intellij.markdown.IElementType;
+import org.intellij.markdown.MarkdownElementTypes;
+import org.intellij.markdown.MarkdownTokenTypes;
+import org.intellij.markdown.ast.ASTNode;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Generates the HTML of a Markdown document from its intellij-markdown AST.
+ * <p/>
+ * This lets the preview render the document with the same parser as the editor instead of PegDown. The tree is
+ * usually parsed for the preview, next to the PSI parse, see
+ * {@link net.nicoulaj.idea.markdown.lang.parser.MarkdownDocumentTreeService}. The generated HTML only covers standard
+ * Markdown: PegDown extensions are not supported.
+ * <p/>
+ * The tree is walked with an explicit stack of the open nodes, like the PSI builder replay, so arbitrarily deep trees
+ * can be rendered.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownHtmlGenerator {
+
+    private static final int INITIAL_DEPTH = 32;
+
+    /** The header element types, by level minus one. */
+    private static final IElementType[] ATX_TYPES = {MarkdownElementTypes.ATX_1, MarkdownElementTypes.ATX_2,
+                                                     MarkdownElementTypes.ATX_3, MarkdownElementTypes.ATX_4,
+                                                     MarkdownElementTypes.ATX_5, MarkdownElementTypes.ATX_6};
+
+    @NotNull
+    private final CharSequence text;
+
+    @NotNull
+    private final StringBuilder html;
+
+    /** The link definitions of the document, by normalized label. */
+    @NotNull
+    private final Map<String, ASTNode> definitions = new HashMap<String, ASTNode>();
+
+    private MarkdownHtmlGenerator(@NotNull CharSequence text) {
+        this.text = text;
+        this.html = new StringBuilder(text.length() + (text.length() >> 2));
+    }
+
+    /**
+     * Generate the HTML of a Markdown document.
+     *
+     * @param text the document text.
+     * @param root the root of the AST of {@code text}.
+     * @return the HTML of the document body.
+     */
+    @NotNull
+    public static String generate(@NotNull CharSequence text, @NotNull ASTNode root) {
+        final MarkdownHtmlGenerator generator = new MarkdownHtmlGenerator(text);
+        generator.collectDefinitions(root);
+        generator.append(root);
+        return generator.html.toString();
+    }
+
+    /** Collect the link definitions, which can only be found in blocks and container blocks. */
+    private void collectDefinitions(@NotNull ASTNode root) {
+        final Deque<ASTNode> nodes = new ArrayDeque<ASTNode>();
+        nodes.push(root);
+        while (!nodes.isEmpty()) {
+            final ASTNode node = nodes.pop();
+            if (node.getType() == MarkdownElementTypes.LINK_DEFINITION) {
+                final ASTNode label = findChild(node, MarkdownElementTypes.LINK_LABEL);
+                if (label != null) {
+                    final String key = normalizeLabel(label);
+                    if (!definitions.containsKey(key)) {
+                        definitions.put(key, node);
+                    }
+                }
+            } else if (isContainer(node.getType())) {
+                for (ASTNode child : node.getChildren()) {
+                    nodes.push(child);
+                }
+            }
+        }
+    }
+
+    /** Append the HTML of a tree. */
+    private void append(@NotNull ASTNode root) {
+        ASTNode[] nodes = new ASTNode[INITIAL_DEPTH];
+        int[] nextChildren = new int[INITIAL_DEPTH];
+        boolean[] tight = new boolean[INITIAL_DEPTH];
+
+        if (!open(root, false)) {
+            return;
+        }
+        nodes[0] = root;
+        tight[0] = false;
+        int depth = 1;
+
+        while (depth > 0) {
+            final int top = depth - 1;
+            final ASTNode node = nodes[top];
+            final List<ASTNode> children = node.getChildren();
+            final int index = nextChildren[top];
+            if (index >= children.size()) {
+                close(node, tight[top]);
+                nodes[top] = null;
+                nextChildren[top] = 0;
+                depth = top;
+                continue;
+            }
+            nextChildren[top] = index + 1;
+
+            if (isSkipped(node, children, index)) {
+                continue;
+            }
+            if (index + 1 < children.size() && appendImage(children.get(index), children.get(index + 1))) {
+                nextChildren[top] = index + 2;
+                continue;
+            }
+
+            final ASTNode child = children.get(index);
+            final IElementType type = child.getType();
+            final boolean childTight;
+            if (type == MarkdownElementTypes.UNORDERED_LIST || type == MarkdownElementTypes.ORDERED_LIST) {
+                childTight = isTight(child);
+            } else if (type == MarkdownElementTypes.LIST_ITEM) {
+                childTight = tight[top];
+            } else {
+                childTight = type == MarkdownElementTypes.PARAGRAPH
+                             && node.getType() == MarkdownElementTypes.LIST_ITEM
+                             && tight[top];
+            }
+
+            if (open(child, childTight)) {
+                if (depth == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, depth * 2);
+                    nextChildren = Arrays.copyOf(nextChildren, depth * 2);
+                    tight = Arrays.copyOf(tight, depth * 2);
+                }
+                nodes[depth] = child;
+                tight[depth] = childTight;
+                depth++;
+            }
+        }
+    }
+
+    /**
+     * Append the start of a node.
+     *
+     * @param node  the node.
+     * @param tight whether the node is a list or list item without blank lines, or a paragraph directly in one.
+     * @return true if the children of the node must be appended, false if the whole node is appended.
+     */
+    private boolean open(@NotNull ASTNode node, boolean tight) {
+        final IElementType type = node.getType();
+        final int level = getHeaderLevel(type);
+        if (level > 0) {
+            html.append("<h").append(level).append('>');
+        } else if (type == MarkdownElementTypes.PARAGRAPH) {
+            if (!tight) {
+                html.append("<p>");
+            }
+        } else if (type == MarkdownElementTypes.BLOCK_QUOTE) {
+            html.append("<blockquote>\n");
+        } else if (type == MarkdownElementTypes.UNORDERED_LIST) {
+            html.append("<ul>\n");
+        } else if (type == MarkdownElementTypes.ORDERED_LIST) {
+            html.append("<ol>\n");
+        } else if (type == MarkdownElementTypes.LIST_ITEM) {
+            html.append("<li>");
+        } else if (type == MarkdownElementTypes.EMPH) {
+            html.append("<em>");
+        } else if (type == MarkdownElementTypes.STRONG) {
+            html.append("<strong>");
+        } else if (type == MarkdownElementTypes.CODE_FENCE) {
+            appendCodeFence(node);
+            return false;
+        } else if (type == MarkdownElementTypes.CODE_BLOCK) {
+            appendCodeBlock(node);
+            return false;
+        } else if (type == MarkdownElementTypes.CODE_SPAN) {
+            appendCodeSpan(node);
+            return false;
+        } else if (isLink(type)) {
+            final ASTNode definition = findDestination(node);
+            if (definition == null) {
+                appendEscaped(node.getStartOffset(), node.getEndOffset(), false);
+                return false;
+            }
+            appendAnchorStart(definition);
+        } else if (type == MarkdownElementTypes.LINK_DEFINITION) {
+            return false;
+        } else if (type == MarkdownElementTypes.AUTOLINK) {
+            final ASTNode url = findChild(node, MarkdownTokenTypes.AUTOLINK);
+            final ASTNode email = findChild(node, MarkdownTokenTypes.EMAIL_AUTOLINK);
+            if (url != null) {
+                appendAutoLink(url, "");
+            } else if (email != null) {
+                appendAutoLink(email, "mailto:");
+            } else {
+                appendEscaped(node.getStartOffset(), node.getEndOffset(), false);
+            }
+            return false;
+        } else if (node.getChildren().isEmpty()) {
+            appendToken(node);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Append the end of a node whose children were appended.
+     *
+     * @param node  the node.
+     * @param tight whether the node is a paragraph without {@code <p>} tag.
+     */
+    private void close(@NotNull ASTNode node, boolean tight) {
+        final IElementType type = node.getType();
+        final int level = getHeaderLevel(type);
+        if (level > 0) {
+            html.append("</h").append(level).append(">\n");
+        } else if (type == MarkdownElementTypes.PARAGRAPH) {
+            if (!tight) {
+                html.append("</p>\n");
+            }
+        } else if (type == MarkdownElementTypes.BLOCK_QUOTE) {
+            html.append("</blockquote>\n");
+        } else if (type == MarkdownElementTypes.UNORDERED_LIST) {
+            html.append("</ul>\n");
+        } else if (type == MarkdownElementTypes.ORDERED_LIST) {
+            html.append("</ol>\n");
+        } else if (type == MarkdownElementTypes.LIST_ITEM) {
+            html.append("</li>\n");
+        } else if (type == MarkdownElementTypes.EMPH) {
+            html.append("</em>");
+        } else if (type == MarkdownElementTypes.STRONG) {
+            html.append("</strong>");
+        } else if (isLink(type)) {
+            html.append("</a>");
+        }
+    }
+
+    /** Append a leaf node. */
+    private void appendToken(@NotNull ASTNode node) {
+        final IElementType type = node.getType();
+        if (type == MarkdownTokenTypes.EOL) {
+            html.append('\n');
+        } else if (type == MarkdownTokenTypes.HARD_LINE_BREAK) {
+            html.append("<br/>\n");
+        } else if (type == MarkdownTokenTypes.HORIZONTAL_RULE) {
+            html.append("<hr/>\n");
+        } else if (type == MarkdownTokenTypes.HTML_BLOCK || type == MarkdownTokenTypes.HTML_TAG) {
+            html.append(text, node.getStartOffset(), node.getEndOffset());
+            if (type == MarkdownTokenTypes.HTML_BLOCK) {
+                html.append('\n');
+            }
+        } else if (type == MarkdownTokenTypes.ESCAPED_BACKTICKS) {
+            for (int i = node.getStartOffset(); i < node.getEndOffset(); i++) {
+                if (text.charAt(i) != '\\') {
+                    html.append(text.charAt(i));
+                }
+            }
+        } else {
+            appendEscaped(node.getStartOffset(), node.getEndOffset(), type == MarkdownTokenTypes.TEXT);
+        }
+    }
+
+    /**
+     * Check whether a child is a marker, which is not rendered.
+     *
+     * @param parent   the parent node.
+     * @param children the children of the parent node.
+     * @param index    the index of the child.
+     * @return true if the child must be skipped.
+     */
+    private static boolean isSkipped(@NotNull ASTNode parent, @NotNull List<ASTNode> children, int index) {
+        final IElementType parentType = parent.getType();
+        final IElementType type = children.get(index).getType();
+        if (type == MarkdownTokenTypes.BLOCK_QUOTE || type == MarkdownTokenTypes.LIST_BULLET
+            || type == MarkdownTokenTypes.LIST_NUMBER || isHeaderMarker(type)) {
+            return true;
+        }
+
+        if (getHeaderLevel(parentType) > 0
+            && (type == MarkdownTokenTypes.WHITE_SPACE || type == MarkdownTokenTypes.EOL)) {
+            return index == 0 || index == children.size() - 1
+                   || isHeaderMarker(children.get(index - 1).getType())
+                   || isHeaderMarker(children.get(index + 1).getType());
+        }
+
+        if (isContainer(parentType)) {
+            return type == MarkdownTokenTypes.EOL || type == MarkdownTokenTypes.WHITE_SPACE;
+        }
+
+        if (parentType == MarkdownElementTypes.SHORT_REFERENCE_LINK) {
+            return type != MarkdownElementTypes.LINK_LABEL;
+        }
+        if (parentType == MarkdownElementTypes.INLINE_LINK || parentType == MarkdownElementTypes.FULL_REFERENCE_LINK) {
+            return type != MarkdownElementTypes.LINK_TEXT;
+        }
+        if (parentType == MarkdownElementTypes.LINK_TEXT || parentType == MarkdownElementTypes.LINK_LABEL) {
+            return type == MarkdownTokenTypes.LBRACKET && index == 0
+                   || type == MarkdownTokenTypes.RBRACKET && index == children.size() - 1;
+        }
+
+        final int markers = parentType == MarkdownElementTypes.STRONG ? 2
+                            : parentType == MarkdownElementTypes.EMPH ? 1
+                            : 0;
+        return type == MarkdownTokenTypes.EMPH && (index < markers || index >= children.size() - markers);
+    }
+
+    /**
+     * Append an image, written as an exclamation mark followed by a link.
+     *
+     * @param mark the node which may be the exclamation mark.
+     * @param link the node following it.
+     * @return true if the nodes are an image and were appended.
+     */
+    private boolean appendImage(@NotNull ASTNode mark, @NotNull ASTNode link) {
+        if (mark.getType() != MarkdownTokenTypes.EXCLAMATION_MARK || !isLink(link.getType())
+            || mark.getEndOffset() != link.getStartOffset()) {
+            return false;
+        }
+        final ASTNode definition = findDestination(link);
+        if (definition == null) {
+            return false;
+        }
+
+        final ASTNode label = findChild(link, link.getType() == MarkdownElementTypes.SHORT_REFERENCE_LINK
+                                              ? MarkdownElementTypes.LINK_LABEL
+                                              : MarkdownElementTypes.LINK_TEXT);
+        html.append("<img src=\"");
+        appendDestination(definition);
+        html.append("\" alt=\"");
+        if (label != null) {
+            appendEscaped(label.getStartOffset() + 1, label.getEndOffset() - 1, true);
+        }
+        html.append('"');
+        appendTitle(definition);
+        html.append("/>");
+        return true;
+    }
+
+    private void appendAnchorStart(@NotNull ASTNode definition) {
+        html.append("<a href=\"");
+        appendDestination(definition);
+        html.append('"');
+        appendTitle(definition);
+        html.append('>');
+    }
+
+    private void appendDestination(@NotNull ASTNode definition) {
+        final ASTNode destination = findChild(definition, MarkdownElementTypes.LINK_DESTINATION);
+        if (destination != null) {
+            int start = destination.getStartOffset();
+            int end = destination.getEndOffset();
+            if (end - start >= 2 && text.charAt(start) == '<' && text.charAt(end - 1) == '>') {
+                start++;
+                end--;
+            }
+            appendEscaped(start, end, false);
+        }
+    }
+
+    private void appendTitle(@NotNull ASTNode definition) {
+        final ASTNode title = findChild(definition, MarkdownElementTypes.LINK_TITLE);
+        if (title != null && title.getEndOffset() - title.getStartOffset() >= 2) {
+            html.append(" title=\"");
+            appendEscaped(title.getStartOffset() + 1, title.getEndOffset() - 1, true);
+            html.append('"');
+        }
+    }
+
+    private void appendAutoLink(@NotNull ASTNode url, @NotNull String scheme) {
+        html.append("<a href=\"").append(scheme);
+        appendEscaped(url.getStartOffset(), url.getEndOffset(), false);
+        html.append("\">");
+        appendEscaped(url.getStartOffset(), url.getEndOffset(), false);
+        html.append("</a>");
+    }
+
+    private void appendCodeFence(@NotNull ASTNode node) {
+        final ASTNode language = findChild(node, MarkdownTokenTypes.FENCE_LANG);
+        html.append("<pre><code");
+        if (language != null) {
+            html.append(" class=\"");
+            appendEscaped(language.getStartOffset(), language.getEndOffset(), false);
+            html.append('"');
+        }
+        html.append('>');
+
+        boolean inContent = false;
+        for (ASTNode child : node.getChildren()) {
+            final IElementType type = child.getType();
+            if (type == MarkdownTokenTypes.CODE_FENCE_END) {
+                break;
+            }
+            if (!inContent) {
+                inContent = type == MarkdownTokenTypes.EOL;
+            } else if (type != MarkdownTokenTypes.BLOCK_QUOTE) {
+                appendEscaped(child.getStartOffset(), child.getEndOffset(), false);
+            }
+        }
+        html.append("</code></pre>\n");
+    }
+
+    private void appendCodeBlock(@NotNull ASTNode node) {
+        final StringBuilder code = new StringBuilder();
+        for (ASTNode child : node.getChildren()) {
+            if (child.getType() != MarkdownTokenTypes.BLOCK_QUOTE) {
+                code.append(text, child.getStartOffset(), child.getEndOffset());
+            }
+        }
+        if (code.length() == 0) {
+            code.append(text, node.getStartOffset(), node.getEndOffset());
+        }
+
+        html.append("<pre><code>");
+        boolean lineStart = true;
+        int indent = 0;
+        for (int i = 0; i < code.length(); i++) {
+            final char c = code.charAt(i);
+            if (lineStart && indent < 4 && (c == ' ' || c == '\t')) {
+                indent = c == '\t' ? 4 : indent + 1;
+                continue;
+            }
+            lineStart = c == '\n';
+            indent = 0;
+            appendEscaped(c);
+        }
+        html.append("\n</code></pre>\n");
+    }
+
+    private void appendCodeSpan(@NotNull ASTNode node) {
+        final List<ASTNode> children = node.getChildren();
+        int start = node.getStartOffset();
+        int end = node.getEndOffset();
+        if (children.size() >= 2) {
+            start = children.get(0).getEndOffset();
+            end = children.get(children.size() - 1).getStartOffset();
+        }
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        html.append("<code>");
+        appendEscaped(start, end, false);
+        html.append("</code>");
+    }
+
+    /**
+     * Append a range of the text, escaped for HTML.
+     *
+     * @param start    the start of the range.
+     * @param end      the end of the range.
+     * @param unescape whether backslash escapes are resolved.
+     */
+    private void appendEscaped(int start, int end, boolean unescape) {
+        for (int i = start; i < end; i++) {
+            final char c = text.charAt(i);
+            if (unescape && c == '\\' && i + 1 < end && isAsciiPunctuation(text.charAt(i + 1))) {
+                appendEscaped(text.charAt(++i));
+            } else {
+                appendEscaped(c);
+            }
+        }
+    }
+
+    private void appendEscaped(char c) {
+        switch (c) {
+            case '&':
+                html.append("&amp;");
+                break;
+            case '<':
+                html.append("&lt;");
+                break;
+            case '>':
+                html.append("&gt;");
+                break;
+            case '"':
+                html.append("&quot;");
+                break;
+            default:
+                html.append(c);
+        }
+    }
+
+    /**
+     * Find the node holding the destination and title of a link: the link itself for inline links, its definition
+     * for reference links.
+     *
+     * @param link the link.
+     * @return the node holding the destination, or {@code null} if the link reference is not defined.
+     */
+    @Nullable
+    private ASTNode findDestination(@NotNull ASTNode link) {
+        if (link.getType() == MarkdownElementTypes.INLINE_LINK) {
+            return link;
+        }
+        final ASTNode label = findChild(link, MarkdownElementTypes.LINK_LABEL);
+        return label != null ? definitions.get(normalizeLabel(label)) : null;
+    }
+
+    /**
+     * Check whether a list has no blank line between its items, nor between the blocks of its items.
+     *
+     * @param list the list.
+     * @return true if the paragraphs of the list items are rendered without {@code <p>} tags.
+     */
+    private boolean isTight(@NotNull ASTNode list) {
+        ASTNode previousItem = null;
+        for (ASTNode item : list.getChildren()) {
+            if (item.getType() != MarkdownElementTypes.LIST_ITEM) {
+                continue;
+            }
+            if (previousItem != null && hasBlankLineBefore(item.getStartOffset(), previousItem.getStartOffset())) {
+                return false;
+            }
+            previousItem = item;
+
+            ASTNode previousBlock = null;
+            for (ASTNode block : item.getChildren()) {
+                if (block.getChildren().isEmpty()) {
+                    continue;
+                }
+                if (previousBlock != null && hasBlankLineBefore(block.getStartOffset(), previousBlock.getEndOffset())) {
+                    return false;
+                }
+                previousBlock = block;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the whitespace before an offset contains a blank line.
+     *
+     * @param offset the offset.
+     * @param limit  the offset where to stop looking.
+     * @return true if two line breaks are found before a non blank character.
+     */
+    private boolean hasBlankLineBefore(int offset, int limit) {
+        int lineBreaks = 0;
+        for (int i = offset - 1; i >= limit; i--) {
+            final char c = text.charAt(i);
+            if (c == '\n') {
+                if (++lineBreaks == 2) {
+                    return true;
+                }
+            } else if (c != ' ' && c != '\t' && c != '\r' && c != '>') {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    @NotNull
+    private String normalizeLabel(@NotNull ASTNode label) {
+        final StringBuilder key = new StringBuilder();
+        boolean space = false;
+        for (int i = label.getStartOffset() + 1; i < label.getEndOffset() - 1; i++) {
+            final char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = key.length() > 0;
+            } else {
+                if (space) {
+                    key.append(' ');
+                    space = false;
+                }
+                key.append(c);
+            }
+        }
+        return key.toString().toLowerCase(Locale.ENGLISH);
+    }
+
+    @Nullable
+    private static ASTNode findChild(@NotNull ASTNode node, @NotNull IElementType type) {
+        for (ASTNode child : node.getChildren()) {
+            if (child.getType() == type) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    private static int getHeaderLevel(@NotNull IElementType type) {
+        for (int i = 0; i < ATX_TYPES.length; i++) {
+            if (ATX_TYPES[i] == type) {
+                return i + 1;
+            }
+        }
+        return type == MarkdownElementTypes.SETEXT_1 ? 1 : type == MarkdownElementTypes.SETEXT_2 ? 2 : 0;
+    }
+
+    private static boolean isHeaderMarker(@NotNull IElementType type) {
+        return type == MarkdownTokenTypes.ATX_HEADER || type == MarkdownTokenTypes.SETEXT_1
+               || type == MarkdownTokenTypes.SETEXT_2;
+    }
+
+    private static boolean isContainer(@NotNull IElementType type) {
+        return type == MarkdownElementTypes.MARKDOWN_FILE || type == MarkdownElementTypes.BLOCK_QUOTE
+               || type == MarkdownElementTypes.UNORDERED_LIST || type == MarkdownElementTypes.ORDERED_LIST
+               || type == MarkdownElementTypes.LIST_ITEM;
+    }
+
+    private static boolean isLink(@NotNull IElementType type) {
+        return type == MarkdownElementTypes.INLINE_LINK || type == MarkdownElementTypes.FULL_REFERENCE_LINK
+               || type == MarkdownElementTypes.SHORT_REFERENCE_LINK;
+    }
+
+    private static boolean isAsciiPunctuation(char c) {
+        return c >= '!' && c <= '/' || c >= ':' && c <= '@' || c >= '[' && c <= '`' || c >= '{' && c <= '~';
+    }
+}
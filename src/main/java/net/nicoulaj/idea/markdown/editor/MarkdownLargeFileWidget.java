@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.editor;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerEvent;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.wm.StatusBarWidget;
+import com.intellij.openapi.wm.impl.status.EditorBasedWidget;
+import com.intellij.util.Consumer;
+import net.nicoulaj.idea.markdown.MarkdownBundle;
+import net.nicoulaj.idea.markdown.file.MarkdownFileType;
+import net.nicoulaj.idea.markdown.settings.MarkdownGlobalSettings;
+import net.nicoulaj.idea.markdown.settings.MarkdownGlobalSettingsListener;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.*;
+import java.awt.event.MouseEvent;
+
+/**
+ * Status bar widget indicating the selected Markdown document is above the large file threshold.
+ * <p/>
+ * Such documents are still fully parsed, but only their block structure gets PSI elements and highlighting, see
+ * {@link MarkdownGlobalSettings#isLargeFile(int)}.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @see MarkdownLargeFileWidgetInstaller
+ * @since 0.10
+ */
+public class MarkdownLargeFileWidget extends EditorBasedWidget implements StatusBarWidget.TextPresentation {
+
+    /** The widget identifier. */
+    @NonNls
+    public static final String ID = "MarkdownLargeFile";
+
+    /** Refreshes the widget when the threshold changes, kept here as settings only hold weak references. */
+    private final MarkdownGlobalSettingsListener settingsListener = new MarkdownGlobalSettingsListener() {
+        public void handleSettingsChanged(@NotNull final MarkdownGlobalSettings newSettings) {
+            update();
+        }
+    };
+
+    /** Whether the selected document is a large Markdown document. */
+    private boolean largeFile;
+
+    /**
+     * Build a new instance of {@link MarkdownLargeFileWidget}.
+     *
+     * @param project the project whose status bar displays the widget.
+     */
+    public MarkdownLargeFileWidget(@NotNull Project project) {
+        super(project);
+        MarkdownGlobalSettings.getInstance().addListener(settingsListener);
+    }
+
+    @NotNull @Override public String ID() {
+        return ID;
+    }
+
+    @Nullable @Override public WidgetPresentation getPresentation(@NotNull PlatformType type) {
+        return this;
+    }
+
+    @Override public void selectionChanged(@NotNull FileEditorManagerEvent event) {
+        update();
+    }
+
+    @NotNull @Override public String getText() {
+        return largeFile ? MarkdownBundle.message("markdown.editor.large-file.status") : "";
+    }
+
+    @NotNull @Override public String getMaxPossibleText() {
+        return MarkdownBundle.message("markdown.editor.large-file.status");
+    }
+
+    @Override public float getAlignment() {
+        return Component.CENTER_ALIGNMENT;
+    }
+
+    @Nullable @Override public String getTooltipText() {
+        return largeFile ? MarkdownBundle.message("markdown.editor.large-file.tooltip",
+                                                  MarkdownGlobalSettings.getInstance().getLargeFileThreshold())
+                         : null;
+    }
+
+    @Nullable @Override public Consumer<MouseEvent> getClickConsumer() {
+        return null;
+    }
+
+    /** Refresh the widget for the selected document. */
+    private void update() {
+        largeFile = isLargeMarkdownFile(getSelectedFile());
+        if (myStatusBar != null) {
+            myStatusBar.updateWidget(ID);
+        }
+    }
+
+    private static boolean isLargeMarkdownFile(@Nullable VirtualFile file) {
+        if (file == null || file.getFileType() != MarkdownFileType.INSTANCE) {
+            return false;
+        }
+
+        final Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+        final long length = document != null ? document.getTextLength() : file.getLength();
+        return MarkdownGlobalSettings.getInstance().isLargeFile((int) Math.min(length, Integer.MAX_VALUE));
+    }
+}
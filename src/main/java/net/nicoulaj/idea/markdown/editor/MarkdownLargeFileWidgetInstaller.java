@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.editor;
+
+import com.intellij.openapi.components.AbstractProjectComponent;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.wm.StatusBar;
+import com.intellij.openapi.wm.WindowManager;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Project component adding a {@link MarkdownLargeFileWidget} to the project status bar.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownLargeFileWidgetInstaller extends AbstractProjectComponent {
+
+    /**
+     * Build a new instance of {@link MarkdownLargeFileWidgetInstaller}.
+     *
+     * @param project the project.
+     */
+    public MarkdownLargeFileWidgetInstaller(@NotNull Project project) {
+        super(project);
+    }
+
+    @Override public void projectOpened() {
+        final StatusBar statusBar = WindowManager.getInstance().getStatusBar(myProject);
+        if (statusBar != null) {
+            statusBar.addWidget(new MarkdownLargeFileWidget(myProject), myProject);
+        }
+    }
+
+    @NotNull @NonNls @Override public String getComponentName() {
+        return "MarkdownLargeFileWidgetInstaller";
+    }
+}
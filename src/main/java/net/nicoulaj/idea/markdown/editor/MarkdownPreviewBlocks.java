@@ -0,0 +1,675 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.editor;
+
+import com.intellij.openapi.editor.event.DocumentEvent;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.pegdown.LinkRenderer;
+import org.pegdown.PegDownProcessor;
+import org.pegdown.ToHtmlSerializer;
+import org.pegdown.ast.Node;
+import org.pegdown.ast.RootNode;
+import org.pegdown.ast.SuperNode;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.html.HTML;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tracks the top-level blocks of a previewed Markdown document, so only the blocks changed by an edit are rendered
+ * again.
+ * <p/>
+ * The document is split on blank lines followed by a line which starts a new top-level block: it is not indented, is
+ * not in a fenced code block and does not continue a list, a block quote or an HTML block. Each block is wrapped in a
+ * {@code div} with a unique id in the preview.
+ * <p/>
+ * The blocks rendered by an update are parsed with a single PegDown call, and the top-level nodes of the resulting
+ * tree are serialized into the element of the block they start in. A full rendering is therefore a single PegDown
+ * call over the whole document. A partial rendering parses the text of the changed blocks, followed by the reference
+ * and abbreviation definitions of the rest of the document these blocks use.
+ * <p/>
+ * Document changes only record the range of the document they touched. When the preview is rendered, the blocks
+ * before the changed range are kept, and the text is split again from there until a block boundary matches the start
+ * of an unchanged block after the changed range. Only the blocks in between are rendered and patched into the
+ * {@link MarkdownPreviewDocument}.
+ * <p/>
+ * Changes are recorded on the EDT, updates are computed on a background thread from a {@link Snapshot} and committed
+ * on the EDT once applied to the preview.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownPreviewBlocks {
+
+    /** The id of the element holding the blocks in the preview. */
+    @NonNls
+    public static final String CONTAINER_ID = "markdown-preview";
+
+    /** The prefix of the ids of the block elements in the preview. */
+    @NonNls
+    private static final String BLOCK_ID_PREFIX = "markdown-block-";
+
+    /** Reference link and abbreviation definitions, which apply to the whole document. */
+    private static final Pattern DEFINITION_PATTERN = Pattern.compile("^ {0,3}(\\*?)\\[([^\\]\\n]+)\\]:.*$",
+                                                                      Pattern.MULTILINE);
+
+    /** The bracketed labels of the text, which may use a reference definition. */
+    private static final Pattern LABEL_PATTERN = Pattern.compile("\\[([^\\]\\n]+)\\]");
+
+    /** The blocks of the document currently shown in the preview, never modified. */
+    @NotNull
+    private List<Block> blocks = Collections.emptyList();
+
+    /** The length of the document currently shown in the preview. */
+    private int textLength;
+
+    /** The definitions of the document currently shown in the preview. */
+    @NotNull
+    private String definitions = "";
+
+    /** Whether the whole preview must be rendered again. */
+    private boolean fullRenderingNeeded = true;
+
+    /** The length of the start of the document not changed since the preview was rendered. */
+    private int unchangedPrefix;
+
+    /** The length of the end of the document not changed since the preview was rendered. */
+    private int unchangedSuffix;
+
+    /** The id of the next block. */
+    private int nextId;
+
+    /**
+     * Record a document change.
+     *
+     * @param event the change.
+     */
+    public void documentChanged(@NotNull DocumentEvent event) {
+        documentChanged(event.getOffset(), event.getNewLength(), event.getDocument().getTextLength());
+    }
+
+    /**
+     * Record a document change.
+     *
+     * @param offset     the offset of the change.
+     * @param newLength  the length of the inserted text.
+     * @param textLength the length of the document after the change.
+     */
+    public synchronized void documentChanged(int offset, int newLength, int textLength) {
+        unchangedPrefix = Math.min(unchangedPrefix, offset);
+        unchangedSuffix = Math.min(unchangedSuffix, textLength - offset - newLength);
+    }
+
+    /** Require the whole preview to be rendered again. */
+    public synchronized void invalidate() {
+        fullRenderingNeeded = true;
+    }
+
+    /**
+     * Take a snapshot of the changes since the preview was rendered.
+     * <p/>
+     * Must be called along with reading the document text, in the same read action.
+     *
+     * @param text the document text.
+     * @return the snapshot.
+     */
+    @NotNull
+    public synchronized Snapshot snapshot(@NotNull String text) {
+        return new Snapshot(text, blocks, textLength, definitions, fullRenderingNeeded, unchangedPrefix,
+                            unchangedSuffix);
+    }
+
+    /**
+     * Compute the update of the preview to the snapshot text, rendering the changed blocks with one PegDown call.
+     *
+     * @param snapshot  the snapshot.
+     * @param processor the processor rendering the blocks.
+     * @return the update.
+     */
+    @NotNull
+    public Update computeUpdate(@NotNull Snapshot snapshot, @NotNull PegDownProcessor processor) {
+        final String text = snapshot.text;
+        final String newDefinitions = collectDefinitions(text);
+        final List<Block> oldBlocks = snapshot.blocks;
+
+        int first = 0;
+        int last = oldBlocks.size();
+        int position = 0;
+        final boolean full = snapshot.fullRenderingNeeded || !newDefinitions.equals(snapshot.definitions);
+        if (!full) {
+            while (first < last && oldBlocks.get(first).end < snapshot.unchangedPrefix) {
+                first++;
+            }
+            position = first > 0 ? oldBlocks.get(first - 1).end : 0;
+        }
+
+        final int delta = text.length() - snapshot.textLength;
+        final int unchangedSuffixStart = snapshot.textLength - snapshot.unchangedSuffix;
+        final List<Block> rendered = new ArrayList<Block>();
+        final int renderedStart = position;
+        int suffix = oldBlocks.size();
+        while (position < text.length()) {
+            final int next = nextBlockStart(text, position);
+            rendered.add(new Block(allocateId(), position, next));
+            position = next;
+
+            if (!full && position - delta >= unchangedSuffixStart) {
+                final int index = findBlock(oldBlocks, position - delta, first);
+                if (index >= 0) {
+                    suffix = index;
+                    break;
+                }
+            }
+        }
+
+        final String renderedText = text.substring(renderedStart, position);
+        final String html = renderBlocks(processor,
+                                         renderedText,
+                                         full ? "" : collectReferencedDefinitions(renderedText, newDefinitions),
+                                         rendered);
+
+        final List<Block> newBlocks = new ArrayList<Block>(first + rendered.size() + oldBlocks.size() - suffix);
+        if (!full) {
+            newBlocks.addAll(oldBlocks.subList(0, first));
+        }
+        newBlocks.addAll(rendered);
+        if (!full) {
+            for (Block block : oldBlocks.subList(suffix, oldBlocks.size())) {
+                newBlocks.add(new Block(block.id, block.start + delta, block.end + delta));
+            }
+        }
+
+        return full
+               ? new Update(true, oldBlocks, newBlocks, 0, oldBlocks.size(), html, text.length(), newDefinitions)
+               : new Update(false, oldBlocks, newBlocks, first, suffix - first, html, text.length(), newDefinitions);
+    }
+
+    /**
+     * Commit an update once it is applied to the preview.
+     *
+     * @param update the update.
+     */
+    public synchronized void commit(@NotNull Update update) {
+        blocks = update.newBlocks;
+        textLength = update.textLength;
+        definitions = update.definitions;
+        fullRenderingNeeded = false;
+        unchangedPrefix = textLength;
+        unchangedSuffix = textLength;
+    }
+
+    /**
+     * Patch a partial update into the preview document.
+     *
+     * @param document the preview document, showing the blocks the update was computed from.
+     * @param update   the partial update.
+     * @return true if the document was patched, false if it does not match the update and must be fully rendered.
+     */
+    public static boolean apply(@NotNull MarkdownPreviewDocument document, @NotNull Update update) {
+        final Element container = document.getContainer();
+        if (container == null || update.full || container.getElementCount() != update.oldBlocks.size()) {
+            return false;
+        }
+
+        final int from = update.from;
+        final int to = from + update.count;
+        if (from > 0 && !isBlockElement(container.getElement(from - 1), update.oldBlocks.get(from - 1))
+            || to > from && !isBlockElement(container.getElement(from), update.oldBlocks.get(from))
+            || to > from && !isBlockElement(container.getElement(to - 1), update.oldBlocks.get(to - 1))
+            || to < update.oldBlocks.size() && !isBlockElement(container.getElement(to), update.oldBlocks.get(to))) {
+            return false;
+        }
+
+        try {
+            if (to > from && (!document.removeChildren(container, from, update.count)
+                              || container.getElementCount() != update.oldBlocks.size() - update.count)) {
+                return false;
+            }
+            if (update.html.length() > 0) {
+                if (from > 0) {
+                    document.insertAfterEnd(container.getElement(from - 1), update.html);
+                } else if (container.getElementCount() > 0) {
+                    document.insertBeforeStart(container.getElement(0), update.html);
+                } else {
+                    document.insertAfterStart(container, update.html);
+                }
+            }
+        } catch (BadLocationException e) {
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+        return container.getElementCount() == update.newBlocks.size();
+    }
+
+    /**
+     * Build the HTML of a full update, to be loaded in a new preview document.
+     *
+     * @param update the full update.
+     * @return the HTML of the whole preview.
+     */
+    @NotNull
+    public static String getDocumentHtml(@NotNull Update update) {
+        return getDocumentHtml(update.html);
+    }
+
+    /**
+     * Build the HTML of a preview document showing the specified body, which is not split in blocks.
+     *
+     * @param html the HTML of the whole document body.
+     * @return the HTML of the whole preview.
+     */
+    @NotNull
+    public static String getDocumentHtml(@NotNull String html) {
+        return "<div id=\"" + CONTAINER_ID + "\">" + html + "</div>";
+    }
+
+    /**
+     * Find the offset of the next top-level block.
+     *
+     * @param text  the document text.
+     * @param start the start of the current block.
+     * @return the start of the next block, or the text length if the current block is the last one.
+     */
+    public static int nextBlockStart(@NotNull CharSequence text, int start) {
+        final int length = text.length();
+        boolean inFence = false;
+        char fenceChar = 0;
+        boolean previousBlank = false;
+        boolean lastNonBlankIsHtml = false;
+        final boolean inList = start < length && isListItemLine(text, start, lineEnd(text, start));
+
+        int line = start;
+        while (line < length) {
+            final int lineEnd = lineEnd(text, line);
+            if (line > start && previousBlank && !lastNonBlankIsHtml && isBlockStartLine(text, line, lineEnd, inList)) {
+                return line;
+            }
+
+            final int firstNonBlank = firstNonBlank(text, line, lineEnd);
+            if (firstNonBlank == lineEnd) {
+                previousBlank = !inFence;
+            } else {
+                previousBlank = false;
+                final char fence = firstNonBlank - line <= 3 ? fenceChar(text, firstNonBlank, lineEnd) : 0;
+                if (fence != 0 && (!inFence || fence == fenceChar)) {
+                    inFence = !inFence;
+                    fenceChar = fence;
+                }
+                if (!inFence) {
+                    lastNonBlankIsHtml = text.charAt(firstNonBlank) == '<';
+                }
+            }
+            line = lineEnd < length ? lineEnd + 1 : length;
+        }
+        return length;
+    }
+
+    /**
+     * Collect the definitions which apply to the whole document.
+     *
+     * @param text the document text.
+     * @return the definitions, one per line.
+     */
+    @NotNull
+    public static String collectDefinitions(@NotNull CharSequence text) {
+        final StringBuilder definitions = new StringBuilder();
+        final Matcher matcher = DEFINITION_PATTERN.matcher(text);
+        while (matcher.find()) {
+            definitions.append(matcher.group()).append('\n');
+        }
+        return definitions.toString();
+    }
+
+    /**
+     * Collect the definitions used by a part of the document.
+     * <p/>
+     * Reference definitions are used if their label is bracketed in the text, abbreviation definitions if their
+     * abbreviation appears in the text. A few unused definitions may be kept, which is harmless.
+     *
+     * @param text        the part of the document.
+     * @param definitions the definitions of the whole document, see {@link #collectDefinitions(CharSequence)}.
+     * @return the definitions used by the text, one per line.
+     */
+    @NotNull
+    public static String collectReferencedDefinitions(@NotNull String text, @NotNull String definitions) {
+        if (definitions.length() == 0) {
+            return definitions;
+        }
+
+        final Set<String> labels = new HashSet<String>();
+        final Matcher labelMatcher = LABEL_PATTERN.matcher(text);
+        while (labelMatcher.find()) {
+            labels.add(normalizeLabel(labelMatcher.group(1)));
+        }
+
+        final StringBuilder referenced = new StringBuilder();
+        final Matcher matcher = DEFINITION_PATTERN.matcher(definitions);
+        while (matcher.find()) {
+            final boolean abbreviation = matcher.group(1).length() > 0;
+            final String label = matcher.group(2);
+            if (abbreviation ? text.contains(label) : labels.contains(normalizeLabel(label))) {
+                referenced.append(matcher.group()).append('\n');
+            }
+        }
+        return referenced.toString();
+    }
+
+    /** Normalize a reference label the way PegDown does, so labels match regardless of case and spaces. */
+    @NotNull
+    private static String normalizeLabel(@NotNull String label) {
+        return label.replace(" ", "").toLowerCase();
+    }
+
+    private synchronized int allocateId() {
+        return nextId++;
+    }
+
+    /**
+     * Render consecutive blocks with a single PegDown call.
+     *
+     * @param processor   the processor.
+     * @param text        the text of the blocks.
+     * @param definitions the definitions used by the blocks and not in their text.
+     * @param blocks      the blocks, the first one starting the text.
+     * @return the HTML of the blocks, each one wrapped in its element.
+     */
+    @NotNull
+    private static String renderBlocks(@NotNull PegDownProcessor processor,
+                                       @NotNull String text,
+                                       @NotNull String definitions,
+                                       @NotNull List<Block> blocks) {
+        if (blocks.isEmpty()) {
+            return "";
+        }
+        final String source = definitions.length() > 0 ? text + "\n\n" + definitions : text;
+        final RootNode root = processor.parseMarkdown(source.toCharArray());
+        return new BlockHtmlSerializer(blocks).toHtml(root);
+    }
+
+    private static boolean isBlockElement(@NotNull Element element, @NotNull Block block) {
+        final AttributeSet attributes = element.getAttributes();
+        return (BLOCK_ID_PREFIX + block.id).equals(attributes.getAttribute(HTML.Attribute.ID));
+    }
+
+    /**
+     * Find the block starting at the specified offset.
+     *
+     * @return the index of the block, or -1 if no block starts at the offset.
+     */
+    private static int findBlock(@NotNull List<Block> blocks, int start, int from) {
+        int low = from;
+        int high = blocks.size() - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int middleStart = blocks.get(middle).start;
+            if (middleStart < start) {
+                low = middle + 1;
+            } else if (middleStart > start) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Check whether a line following a blank line starts a new top-level block.
+     *
+     * @param inList whether the current block is a list, list items then continue it.
+     */
+    private static boolean isBlockStartLine(@NotNull CharSequence text, int line, int lineEnd, boolean inList) {
+        final char c = text.charAt(line);
+        if (isBlank(c) || c == '<' || c == '>') {
+            return false;
+        }
+        return !inList || !isListItemLine(text, line, lineEnd);
+    }
+
+    private static boolean isListItemLine(@NotNull CharSequence text, int line, int lineEnd) {
+        final char c = text.charAt(line);
+        if (c == '-' || c == '*' || c == '+') {
+            return line + 1 == lineEnd || isBlank(text.charAt(line + 1));
+        }
+        int i = line;
+        while (i < lineEnd && Character.isDigit(text.charAt(i))) {
+            i++;
+        }
+        return i > line && i < lineEnd && (text.charAt(i) == '.' || text.charAt(i) == ')');
+    }
+
+    /** Get the fence character if the line starting at the specified offset opens or closes a fenced code block. */
+    private static char fenceChar(@NotNull CharSequence text, int start, int lineEnd) {
+        final char c = text.charAt(start);
+        if (c != '`' && c != '~') {
+            return 0;
+        }
+        int i = start;
+        while (i < lineEnd && text.charAt(i) == c) {
+            i++;
+        }
+        return i - start >= 3 ? c : 0;
+    }
+
+    private static int lineEnd(@NotNull CharSequence text, int line) {
+        int i = line;
+        while (i < text.length() && text.charAt(i) != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int firstNonBlank(@NotNull CharSequence text, int line, int lineEnd) {
+        int i = line;
+        while (i < lineEnd && isBlank(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    /**
+     * Serializes a PegDown tree to HTML, wrapping the top-level nodes starting in each block in the element of the
+     * block. Blocks in which no node starts get an empty element. The content of list items is parsed by PegDown into
+     * nested {@link RootNode}s, which are serialized as usual.
+     */
+    private static class BlockHtmlSerializer extends ToHtmlSerializer {
+        @NotNull
+        private final List<Block> blocks;
+
+        /** The offset of the parsed text in the document. */
+        private final int offset;
+
+        /** The root of the serialized tree. */
+        private RootNode root;
+
+        private BlockHtmlSerializer(@NotNull List<Block> blocks) {
+            super(new LinkRenderer());
+            this.blocks = blocks;
+            this.offset = blocks.get(0).start;
+        }
+
+        @Override public String toHtml(@NotNull RootNode root) {
+            this.root = root;
+            return super.toHtml(root);
+        }
+
+        @Override protected void visitChildren(@NotNull SuperNode node) {
+            if (node != root) {
+                super.visitChildren(node);
+                return;
+            }
+
+            int index = 0;
+            openBlock(blocks.get(index));
+            for (Node child : node.getChildren()) {
+                while (index + 1 < blocks.size() && offset + child.getStartIndex() >= blocks.get(index + 1).start) {
+                    closeBlock();
+                    openBlock(blocks.get(++index));
+                }
+                child.accept(this);
+            }
+            closeBlock();
+            while (++index < blocks.size()) {
+                openBlock(blocks.get(index));
+                closeBlock();
+            }
+        }
+
+        private void openBlock(@NotNull Block block) {
+            printer.print("<div id=\"").print(BLOCK_ID_PREFIX).print(Integer.toString(block.id)).print("\">");
+        }
+
+        private void closeBlock() {
+            printer.print("</div>");
+        }
+    }
+
+    /** A top-level block of the document, as shown in the preview. */
+    public static class Block {
+        private final int id;
+        private final int start;
+        private final int end;
+
+        private Block(int id, int start, int end) {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+    }
+
+    /** The state of the preview and the changes since it was rendered, along with the current document text. */
+    public static class Snapshot {
+        @NotNull private final String text;
+        @NotNull private final List<Block> blocks;
+        private final int textLength;
+        @NotNull private final String definitions;
+        private final boolean fullRenderingNeeded;
+        private final int unchangedPrefix;
+        private final int unchangedSuffix;
+
+        private Snapshot(@NotNull String text,
+                         @NotNull List<Block> blocks,
+                         int textLength,
+                         @NotNull String definitions,
+                         boolean fullRenderingNeeded,
+                         int unchangedPrefix,
+                         int unchangedSuffix) {
+            this.text = text;
+            this.blocks = blocks;
+            this.textLength = textLength;
+            this.definitions = definitions;
+            this.fullRenderingNeeded = fullRenderingNeeded;
+            this.unchangedPrefix = unchangedPrefix;
+            this.unchangedSuffix = unchangedSuffix;
+        }
+
+        @NotNull
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * An update of the preview: either a full rendering, or the replacement of a range of blocks.
+     * <p/>
+     * A full update holds the HTML of all the blocks, a partial update the HTML of the replacing blocks.
+     */
+    public static class Update {
+        private final boolean full;
+        @NotNull private final List<Block> oldBlocks;
+        @NotNull private final List<Block> newBlocks;
+        private final int from;
+        private final int count;
+        @NotNull private final String html;
+        private final int textLength;
+        @NotNull private final String definitions;
+
+        private Update(boolean full,
+                       @NotNull List<Block> oldBlocks,
+                       @NotNull List<Block> newBlocks,
+                       int from,
+                       int count,
+                       @NotNull String html,
+                       int textLength,
+                       @NotNull String definitions) {
+            this.full = full;
+            this.oldBlocks = oldBlocks;
+            this.newBlocks = newBlocks;
+            this.from = from;
+            this.count = count;
+            this.html = html;
+            this.textLength = textLength;
+            this.definitions = definitions;
+        }
+
+        /**
+         * Whether this update renders the whole preview.
+         *
+         * @return true for a full update, false for a partial one.
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        /**
+         * Get the number of blocks rendered by this update.
+         *
+         * @return the number of rendered blocks.
+         */
+        public int getRenderedBlockCount() {
+            return newBlocks.size() - (oldBlocks.size() - count);
+        }
+
+        /**
+         * Get the blocks of the document after this update.
+         *
+         * @return the blocks.
+         */
+        @NotNull
+        public List<Block> getBlocks() {
+            return newBlocks;
+        }
+    }
+}
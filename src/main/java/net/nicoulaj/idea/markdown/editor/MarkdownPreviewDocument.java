@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.editor;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.text.Element;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.StyleSheet;
+
+/**
+ * {@link HTMLDocument} of the Markdown preview, which can have its blocks replaced in place.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @see MarkdownPreviewBlocks
+ * @since 0.10
+ */
+public class MarkdownPreviewDocument extends HTMLDocument {
+
+    /** The element holding the blocks, looked up once. */
+    @Nullable
+    private Element container;
+
+    /**
+     * Build a new instance of {@link MarkdownPreviewDocument}.
+     *
+     * @param styles the styles of the document.
+     */
+    public MarkdownPreviewDocument(@NotNull StyleSheet styles) {
+        super(styles);
+    }
+
+    /**
+     * Get the element holding the blocks of the preview.
+     *
+     * @return the element with id {@link MarkdownPreviewBlocks#CONTAINER_ID}, or {@code null} if there is none.
+     */
+    @Nullable
+    public Element getContainer() {
+        if (container == null) {
+            container = getElement(MarkdownPreviewBlocks.CONTAINER_ID);
+        }
+        return container;
+    }
+
+    /**
+     * Remove child elements, with their content.
+     * <p/>
+     * Unlike removing their text range, this never merges the following element into the removed ones.
+     *
+     * @param parent the parent of the elements.
+     * @param index  the index of the first removed child.
+     * @param count  the number of removed children.
+     * @return false if the elements cannot be removed on this JRE ({@link HTMLDocument#removeElement(Element)} requires
+     *         Java 7).
+     */
+    public boolean removeChildren(@NotNull Element parent, int index, int count) {
+        final Element[] children = new Element[count];
+        for (int i = 0; i < count; i++) {
+            children[i] = parent.getElement(index + i);
+        }
+        try {
+            for (Element child : children) {
+                removeElement(child);
+            }
+        } catch (NoSuchMethodError e) {
+            return false;
+        }
+        return true;
+    }
+}
@@ -22,6 +22,7 @@ package net.nicoulaj.idea.markdown.editor;
 
 import com.intellij.codeHighlighting.BackgroundEditorHighlighter;
 import com.intellij.ide.structureView.StructureViewBuilder;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.event.DocumentAdapter;
@@ -31,12 +32,16 @@ import com.intellij.openapi.fileEditor.FileEditorLocation;
 import com.intellij.openapi.fileEditor.FileEditorState;
 import com.intellij.openapi.fileEditor.FileEditorStateLevel;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.ui.components.JBScrollPane;
+import com.intellij.util.Alarm;
 import net.nicoulaj.idea.markdown.MarkdownBundle;
+import net.nicoulaj.idea.markdown.lang.parser.MarkdownDocumentTreeService;
 import net.nicoulaj.idea.markdown.settings.MarkdownGlobalSettings;
 import net.nicoulaj.idea.markdown.settings.MarkdownGlobalSettingsListener;
+import org.intellij.markdown.ast.ASTNode;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -48,11 +53,25 @@ import javax.swing.text.html.HTMLEditorKit;
 import javax.swing.text.html.StyleSheet;
 import java.awt.*;
 import java.beans.PropertyChangeListener;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * {@link FileEditor} implementation that provides rendering preview for Markdown documents.
  * <p/>
- * The preview is generated by <a href="https://github.com/sirthias/pegdown">pegdown</a>.
+ * The preview is generated by <a href="https://github.com/sirthias/pegdown">pegdown</a>, or with
+ * {@link MarkdownGlobalSettings#isParserPreview()} from an intellij-markdown AST by {@link MarkdownHtmlGenerator}.
+ * <p/>
+ * Rendering runs on a pooled thread: the HTML is generated and parsed into a Swing document in the background, and
+ * only swapping the document in the editor pane happens on the EDT. Rendering requests are coalesced, so a burst of
+ * document changes is rendered once, and a rendering made obsolete by a newer request or by the disposal of the editor
+ * is dropped. PegDown cannot be interrupted, so an obsolete rendering is only dropped between its stages (reading the
+ * document, generating the HTML, building the Swing document, swapping it in): a stage which already started runs to
+ * its end.
+ * <p/>
+ * After an edit, only the top-level blocks touched by the changes are rendered again, and patched into the preview
+ * document in place (see {@link MarkdownPreviewBlocks}).
  *
  * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
  * @author Roger Grantham (https://github.com/grantham)
@@ -72,30 +91,57 @@ public class MarkdownPreviewEditor extends UserDataHolderBase implements FileEdi
     @NonNls
     public static final String PREVIEW_STYLESHEET_PATH = "/net/nicoulaj/idea/markdown/preview.css";
 
+    /** The delay before the preview is rendered after a document change, in milliseconds. */
+    public static final int RENDERING_DELAY = 300;
+
     /** The {@link java.awt.Component} used to render the HTML preview. */
     protected final JEditorPane jEditorPane = new JEditorPane();
 
     /** The {@link JBScrollPane} allowing to browse {@link #jEditorPane}. */
     protected final JBScrollPane scrollPane = new JBScrollPane(jEditorPane);
 
+    /** The {@link Project} containing {@link #document}. */
+    protected final Project project;
+
     /** The {@link Document} previewed in this editor. */
     protected final Document document;
 
-    /** The {@link PegDownProcessor} used for building the document AST. */
-    private ThreadLocal<PegDownProcessor> processor = initProcessor();
+    /** The {@link HTMLEditorKit} building the Swing documents rendered by {@link #jEditorPane}. */
+    protected final HTMLEditorKit kit;
 
-    /** Init/reinit thread local {@link PegDownProcessor}. */
-    private static ThreadLocal<PegDownProcessor> initProcessor() {
-        return new ThreadLocal<PegDownProcessor>() {
-            @Override protected PegDownProcessor initialValue() {
-                return new PegDownProcessor(MarkdownGlobalSettings.getInstance().getExtensionsValue(),
-                                            MarkdownGlobalSettings.getInstance().getParsingTimeout());
-            }
-        };
-    }
+    /** The blocks of the document shown in the preview, and the changes since they were rendered. */
+    private final MarkdownPreviewBlocks blocks = new MarkdownPreviewBlocks();
+
+    /** Runs the renderings off the EDT. */
+    private final Alarm renderingAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, this);
+
+    /** Incremented each time the preview becomes obsolete, renderings of previous generations are dropped. */
+    private final AtomicInteger renderingGeneration = new AtomicInteger();
+
+    /** Whether the editor is selected. */
+    private volatile boolean selected;
+
+    /** Whether the editor is disposed, the preview is then never updated again. */
+    private volatile boolean disposed;
+
+    /** The time the EDT was blocked by the last preview update, in nanoseconds. */
+    private volatile long lastEdtBlockingTime;
+
+    /**
+     * Re-renders the whole preview when the settings change.
+     * <p/>
+     * {@link MarkdownGlobalSettings} only holds weak references to its listeners, so the listener is kept here for the
+     * lifetime of the editor.
+     */
+    private final MarkdownGlobalSettingsListener settingsListener = new MarkdownGlobalSettingsListener() {
+        public void handleSettingsChanged(@NotNull final MarkdownGlobalSettings newSettings) {
+            blocks.invalidate();
+            invalidatePreview(0);
+        }
+    };
 
     /** Indicates whether the HTML preview is obsolete and should regenerated from the Markdown {@link #document}. */
-    protected boolean previewIsObsolete = true;
+    protected volatile boolean previewIsObsolete = true;
 
     /**
      * Build a new instance of {@link MarkdownPreviewEditor}.
@@ -104,26 +150,23 @@ public class MarkdownPreviewEditor extends UserDataHolderBase implements FileEdi
      * @param document the {@link com.intellij.openapi.editor.Document} previewed in this editor.
      */
     public MarkdownPreviewEditor(@NotNull Project project, @NotNull Document document) {
+        this.project = project;
         this.document = document;
 
-        // Listen to the document modifications.
+        // Listen to the document modifications, until the editor is disposed.
         this.document.addDocumentListener(new DocumentAdapter() {
             @Override
             public void documentChanged(DocumentEvent e) {
-                previewIsObsolete = true;
+                blocks.documentChanged(e);
+                invalidatePreview(RENDERING_DELAY);
             }
-        });
+        }, this);
 
         // Listen to settings changes
-        MarkdownGlobalSettings.getInstance().addListener(new MarkdownGlobalSettingsListener() {
-            public void handleSettingsChanged(@NotNull final MarkdownGlobalSettings newSettings) {
-                initProcessor();
-                previewIsObsolete = true;
-            }
-        });
+        MarkdownGlobalSettings.getInstance().addListener(settingsListener);
 
         // Setup the editor pane for rendering HTML.
-        final HTMLEditorKit kit = new MarkdownEditorKit(document);
+        kit = new MarkdownEditorKit(document);
         final StyleSheet style = new StyleSheet();
         style.importStyleSheet(MarkdownPreviewEditor.class.getResource(PREVIEW_STYLESHEET_PATH));
         kit.setStyleSheet(style);
@@ -215,27 +258,159 @@ public class MarkdownPreviewEditor extends UserDataHolderBase implements FileEdi
     /**
      * Invoked when the editor is selected.
      * <p/>
-     * Update the HTML content if obsolete.
+     * Schedule the rendering of the HTML content if obsolete.
      */
     public void selectNotify() {
+        selected = true;
         if (previewIsObsolete) {
-            try {
-                jEditorPane.setText("<div id=\"markdown-preview\">" +
-                                    processor.get().markdownToHtml(document.getText()) +
-                                    "</div>");
-                previewIsObsolete = false;
-            } catch (Exception e) {
-                LOGGER.error("Failed processing Markdown document", e);
-            }
+            scheduleRendering(0);
         }
     }
 
     /**
      * Invoked when the editor is deselected.
      * <p/>
-     * Does nothing.
+     * Cancel the pending rendering, the preview is rendered again when the editor is selected.
      */
     public void deselectNotify() {
+        selected = false;
+        renderingAlarm.cancelAllRequests();
+    }
+
+    /**
+     * Get the time the EDT was blocked by the last update of the preview.
+     *
+     * @return the time in milliseconds.
+     */
+    public long getLastEdtBlockingTime() {
+        return TimeUnit.NANOSECONDS.toMillis(lastEdtBlockingTime);
+    }
+
+    /**
+     * Mark the preview as obsolete, and schedule its rendering if the editor is selected. Does nothing once the
+     * editor is disposed.
+     *
+     * @param delay the delay before rendering, in milliseconds.
+     */
+    private void invalidatePreview(int delay) {
+        if (disposed) {
+            return;
+        }
+        previewIsObsolete = true;
+        renderingGeneration.incrementAndGet();
+        if (selected) {
+            scheduleRendering(delay);
+        }
+    }
+
+    /**
+     * Schedule the rendering of the preview, replacing the pending one if any.
+     *
+     * @param delay the delay before rendering, in milliseconds.
+     */
+    private void scheduleRendering(int delay) {
+        final int generation = renderingGeneration.get();
+        renderingAlarm.cancelAllRequests();
+        renderingAlarm.addRequest(new Runnable() {
+            @Override public void run() {
+                render(generation);
+            }
+        }, delay);
+    }
+
+    /**
+     * Render the preview off the EDT, then update it in the editor pane on the EDT.
+     * <p/>
+     * The whole preview is rendered to a new Swing document which replaces the current one, unless only some blocks
+     * have changed: these blocks are then rendered and patched into the current document. The rendering is dropped as
+     * soon as the preview becomes obsolete again.
+     * <p/>
+     * With {@link MarkdownGlobalSettings#isParserPreview()}, the whole preview is generated from an intellij-markdown
+     * AST of the document instead of PegDown. The AST comes from {@link MarkdownDocumentTreeService}: this is a second
+     * parse of the document next to the PSI one, except right after the PSI of the whole document was parsed.
+     *
+     * @param generation the value of {@link #renderingGeneration} when the rendering was requested.
+     */
+    private void render(final int generation) {
+        final long start = System.nanoTime();
+        final MarkdownPreviewBlocks.Snapshot snapshot =
+                ApplicationManager.getApplication().runReadAction(new Computable<MarkdownPreviewBlocks.Snapshot>() {
+                    @Override public MarkdownPreviewBlocks.Snapshot compute() {
+                        return blocks.snapshot(document.getText());
+                    }
+                });
+        if (generation != renderingGeneration.get()) {
+            return;
+        }
+
+        final MarkdownPreviewBlocks.Update update;
+        final javax.swing.text.Document preview;
+        try {
+            final String html;
+            if (MarkdownGlobalSettings.getInstance().isParserPreview()) {
+                final ASTNode tree = MarkdownDocumentTreeService.getInstance(project).getTree(document);
+                if (generation != renderingGeneration.get()) {
+                    return;
+                }
+                update = null;
+                html = MarkdownPreviewBlocks.getDocumentHtml(MarkdownHtmlGenerator.generate(snapshot.getText(), tree));
+            } else {
+                final MarkdownProcessorPool processorPool = MarkdownProcessorPool.getInstance();
+                final PegDownProcessor processor = processorPool.acquire();
+                try {
+                    update = blocks.computeUpdate(snapshot, processor);
+                } finally {
+                    processorPool.release(processor);
+                }
+                html = update.isFull() ? MarkdownPreviewBlocks.getDocumentHtml(update) : null;
+            }
+            if (generation != renderingGeneration.get()) {
+                return;
+            }
+            if (html != null) {
+                preview = kit.createDefaultDocument();
+                kit.read(new StringReader(html), preview, 0);
+            } else {
+                preview = null;
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed processing Markdown document", e);
+            return;
+        }
+        final long renderingTime = System.nanoTime() - start;
+
+        ApplicationManager.getApplication().invokeLater(new Runnable() {
+            @Override public void run() {
+                if (disposed || generation != renderingGeneration.get()) {
+                    return;
+                }
+                final long swapStart = System.nanoTime();
+                final javax.swing.text.Document current = jEditorPane.getDocument();
+                if (preview != null) {
+                    jEditorPane.setDocument(preview);
+                } else if (!(current instanceof MarkdownPreviewDocument)
+                           || !MarkdownPreviewBlocks.apply((MarkdownPreviewDocument) current, update)) {
+                    blocks.invalidate();
+                    scheduleRendering(0);
+                    return;
+                }
+                lastEdtBlockingTime = System.nanoTime() - swapStart;
+                if (update != null) {
+                    blocks.commit(update);
+                }
+                previewIsObsolete = false;
+
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Rendered " + (update != null
+                                                ? update.getRenderedBlockCount() + " of " + update.getBlocks().size()
+                                                  + " blocks"
+                                                : "the parse tree")
+                                 + " of the preview of " + snapshot.getText().length() + " chars in "
+                                 + TimeUnit.NANOSECONDS.toMillis(renderingTime) + " ms, EDT blocked for "
+                                 + getLastEdtBlockingTime() + " ms");
+                }
+            }
+        }, project.getDisposed());
     }
 
     /**
@@ -288,8 +463,11 @@ public class MarkdownPreviewEditor extends UserDataHolderBase implements FileEdi
         return null;
     }
 
-    /** Dispose the editor. */
+    /** Dispose the editor, dropping the rendering in progress if any. */
     public void dispose() {
+        disposed = true;
+        selected = false;
+        renderingGeneration.incrementAndGet();
         Disposer.dispose(this);
     }
 }
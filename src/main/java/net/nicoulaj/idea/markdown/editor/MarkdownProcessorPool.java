@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.editor;
+
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import net.nicoulaj.idea.markdown.settings.MarkdownGlobalSettings;
+import org.jetbrains.annotations.NotNull;
+import org.pegdown.PegDownProcessor;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of {@link PegDownProcessor}s configured with the current {@link MarkdownGlobalSettings}.
+ * <p/>
+ * A {@link PegDownProcessor} cannot render two documents at once, and building one is expensive, so processors are
+ * shared by all the previews and leased for one rendering at a time. Idle processors are kept for the extensions and
+ * parsing timeout they were built with: once the settings change, processors built with the previous settings are
+ * dropped when they are released, and new ones are built on demand.
+ * <p/>
+ * The first processor is much slower to build than the next ones, because parboiled generates the bytecode of the
+ * PegDown parser at runtime. {@link #warmUp()} pays this cost ahead of the first preview.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownProcessorPool {
+
+    /** The maximum number of idle processors kept in the pool. */
+    public static final int MAX_IDLE = Runtime.getRuntime().availableProcessors();
+
+    private static final Logger LOGGER = Logger.getInstance(MarkdownProcessorPool.class);
+
+    /** The document rendered to warm the pool up. */
+    private static final String WARM_UP_DOCUMENT = "# Title\n\nSome *text* with a [link](http://example.com).\n";
+
+    private final AtomicBoolean warmedUp = new AtomicBoolean();
+    private final AtomicInteger instances = new AtomicInteger();
+    private final AtomicLong constructionTime = new AtomicLong();
+
+    /** The settings the idle processors are built with. */
+    @NotNull
+    private Key key = new Key(0, 0);
+
+    /** The idle processors. */
+    @NotNull
+    private final Deque<PegDownProcessor> idle = new ArrayDeque<PegDownProcessor>();
+
+    /** The settings each leased processor is built with. */
+    @NotNull
+    private final Map<PegDownProcessor, Key> leased = new IdentityHashMap<PegDownProcessor, Key>();
+
+    /**
+     * Get the instance of this service.
+     *
+     * @return the unique {@link MarkdownProcessorPool} instance.
+     */
+    public static MarkdownProcessorPool getInstance() {
+        return ServiceManager.getService(MarkdownProcessorPool.class);
+    }
+
+    /**
+     * Lease a processor configured with the current settings.
+     * <p/>
+     * The processor must be given back with {@link #release(PegDownProcessor)} once the rendering is done.
+     *
+     * @return a processor, used by no other thread until it is released.
+     */
+    @NotNull
+    public PegDownProcessor acquire() {
+        final MarkdownGlobalSettings settings = MarkdownGlobalSettings.getInstance();
+        return acquire(settings.getExtensionsValue(), settings.getParsingTimeout());
+    }
+
+    /**
+     * Lease a processor configured with the specified settings, which become the current ones.
+     *
+     * @param extensions     the PegDown extensions.
+     * @param parsingTimeout the parsing timeout, in milliseconds.
+     * @return a processor, used by no other thread until it is released.
+     */
+    @NotNull
+    PegDownProcessor acquire(int extensions, long parsingTimeout) {
+        final Key currentKey = new Key(extensions, parsingTimeout);
+
+        synchronized (this) {
+            if (!currentKey.equals(key)) {
+                key = currentKey;
+                idle.clear();
+            }
+            final PegDownProcessor processor = idle.pollFirst();
+            if (processor != null) {
+                leased.put(processor, currentKey);
+                return processor;
+            }
+        }
+
+        final long start = System.nanoTime();
+        final PegDownProcessor processor = new PegDownProcessor(currentKey.extensions, currentKey.parsingTimeout);
+        final long duration = System.nanoTime() - start;
+        constructionTime.addAndGet(duration);
+        instances.incrementAndGet();
+
+        synchronized (this) {
+            leased.put(processor, currentKey);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Built a PegDown processor in " + TimeUnit.NANOSECONDS.toMillis(duration) + " ms: " + this);
+        }
+        return processor;
+    }
+
+    /**
+     * Build a processor and render a small document with it, so the PegDown parser classes are generated and loaded.
+     * <p/>
+     * The processor is kept in the pool for the first rendering. Only the first call does anything.
+     */
+    public void warmUp() {
+        if (!warmedUp.compareAndSet(false, true)) {
+            return;
+        }
+        final long start = System.nanoTime();
+        final PegDownProcessor processor = acquire();
+        try {
+            processor.markdownToHtml(WARM_UP_DOCUMENT);
+        } finally {
+            release(processor);
+        }
+        LOGGER.info("PegDown processor warmed up in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Give a leased processor back to the pool.
+     *
+     * @param processor the processor returned by {@link #acquire()}.
+     */
+    public synchronized void release(@NotNull PegDownProcessor processor) {
+        final Key processorKey = leased.remove(processor);
+        if (key.equals(processorKey) && idle.size() < MAX_IDLE) {
+            idle.addFirst(processor);
+        }
+    }
+
+    /**
+     * Get the number of processors built by this pool.
+     *
+     * @return the instance count.
+     */
+    public int getInstanceCount() {
+        return instances.get();
+    }
+
+    /**
+     * Get the total time spent building processors.
+     *
+     * @return the time in milliseconds.
+     */
+    public long getConstructionTime() {
+        return TimeUnit.NANOSECONDS.toMillis(constructionTime.get());
+    }
+
+    /**
+     * Get the number of idle processors.
+     *
+     * @return the idle count.
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    @Override public synchronized String toString() {
+        return "MarkdownProcessorPool{instances=" + instances + ", constructionTime=" + getConstructionTime()
+               + " ms, idle=" + idle.size() + ", leased=" + leased.size() + '}';
+    }
+
+    /** The settings a processor is built with. */
+    private static class Key {
+        private final int extensions;
+        private final long parsingTimeout;
+
+        private Key(int extensions, long parsingTimeout) {
+            this.extensions = extensions;
+            this.parsingTimeout = parsingTimeout;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return extensions == other.extensions && parsingTimeout == other.parsingTimeout;
+        }
+
+        @Override public int hashCode() {
+            return 31 * extensions + (int) (parsingTimeout ^ (parsingTimeout >>> 32));
+        }
+    }
+}
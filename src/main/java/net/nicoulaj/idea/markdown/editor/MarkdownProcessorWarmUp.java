@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.editor;
+
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.AbstractProjectComponent;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupManager;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Project component warming the {@link MarkdownProcessorPool} up in the background once the project is opened, so
+ * the first preview does not wait for the PegDown parser to be generated.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownProcessorWarmUp extends AbstractProjectComponent {
+
+    /**
+     * Build a new instance of {@link MarkdownProcessorWarmUp}.
+     *
+     * @param project the project.
+     */
+    public MarkdownProcessorWarmUp(@NotNull Project project) {
+        super(project);
+    }
+
+    @Override public void projectOpened() {
+        final Application application = ApplicationManager.getApplication();
+        if (application.isUnitTestMode() || application.isHeadlessEnvironment()) {
+            return;
+        }
+
+        StartupManager.getInstance(myProject).runWhenProjectIsInitialized(new Runnable() {
+            @Override public void run() {
+                application.executeOnPooledThread(new Runnable() {
+                    @Override public void run() {
+                        final Thread thread = Thread.currentThread();
+                        final int priority = thread.getPriority();
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        try {
+                            MarkdownProcessorPool.getInstance().warmUp();
+                        } finally {
+                            thread.setPriority(priority);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @NotNull @NonNls @Override public String getComponentName() {
+        return "MarkdownProcessorWarmUp";
+    }
+}
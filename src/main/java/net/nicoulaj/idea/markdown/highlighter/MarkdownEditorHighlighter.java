@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.highlighter;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.colors.EditorColorsScheme;
+import com.intellij.openapi.editor.ex.util.LexerEditorHighlighter;
+import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.psi.tree.IElementType;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Editor highlighter for Markdown files.
+ * <p/>
+ * Tokens and the block structures enclosing them are coloured in a single incremental lexing pass by
+ * {@link MarkdownHighlightingLexer}. Iterators return the base type of {@link MarkdownLayeredTokenType}s, so brace
+ * matching, quote handling and other features based on token types are not affected by the layers.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @see MarkdownEditorHighlighterProvider
+ * @since 0.10
+ */
+public class MarkdownEditorHighlighter extends LexerEditorHighlighter {
+
+    /**
+     * Build a new instance of {@link MarkdownEditorHighlighter}.
+     *
+     * @param scheme the colors scheme of the editor.
+     */
+    public MarkdownEditorHighlighter(@NotNull EditorColorsScheme scheme) {
+        super(new MarkdownSyntaxHighlighter(), scheme);
+    }
+
+    @NotNull @Override public HighlighterIterator createIterator(int startOffset) {
+        return new BaseTypeIterator(super.createIterator(startOffset));
+    }
+
+    /** {@link HighlighterIterator} returning the base type of layered tokens. */
+    private static class BaseTypeIterator implements HighlighterIterator {
+
+        @NotNull
+        private final HighlighterIterator delegate;
+
+        public BaseTypeIterator(@NotNull HighlighterIterator delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override public TextAttributes getTextAttributes() {
+            return delegate.getTextAttributes();
+        }
+
+        @Override public int getStart() {
+            return delegate.getStart();
+        }
+
+        @Override public int getEnd() {
+            return delegate.getEnd();
+        }
+
+        @Override public IElementType getTokenType() {
+            return MarkdownLayeredTokenType.baseType(delegate.getTokenType());
+        }
+
+        @Override public void advance() {
+            delegate.advance();
+        }
+
+        @Override public void retreat() {
+            delegate.retreat();
+        }
+
+        @Override public boolean atEnd() {
+            return delegate.atEnd();
+        }
+
+        @Override public Document getDocument() {
+            return delegate.getDocument();
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.highlighter;
+
+import com.intellij.lexer.LexerBase;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.util.ArrayUtil;
+import net.nicoulaj.idea.markdown.lang.MarkdownTokenTypes;
+import net.nicoulaj.idea.markdown.lang.lexer.MarkdownLexerAdapter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Highlighting lexer for Markdown, which tags tokens with the block structures enclosing them.
+ * <p/>
+ * Tokens come from a {@link MarkdownLexerAdapter}, one line at a time. Each line is matched against the block
+ * structures it can open or continue (headers, block quotes, list items, fenced and indented code blocks), and its
+ * tokens are returned as {@link MarkdownLayeredTokenType}s, so the editor highlighter colours these blocks along with
+ * the tokens. Structures are tracked from the start of the current top-level block only: states are the ones of the
+ * delegate lexer, and a token in {@link MarkdownLexerAdapter#BLOCK_BOUNDARY_STATE} never inherits any structure from
+ * the previous lines, so incremental re-highlighting can restart from it.
+ * <p/>
+ * The structures tracked across lines ({@link #inBlockQuote}, {@link #listLayer} and {@link #afterBlankLine}) are
+ * not part of {@link #getState()}. This is only correct because lexing is never restarted anywhere else than at
+ * {@link MarkdownLexerAdapter#BLOCK_BOUNDARY_STATE}, where these fields have their initial values: a restart in any
+ * other state would lose them.
+ * <p/>
+ * Only the last line of multi-line setext headers and the lines of lazy block quote continuations are approximated,
+ * as recognizing them exactly requires the full parser.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownHighlightingLexer extends LexerBase {
+
+    private static final int INITIAL_LINE_CAPACITY = 16;
+
+    @NotNull
+    private final MarkdownLexerAdapter delegate = new MarkdownLexerAdapter();
+
+    /** The tokens of the current line, with their layers. */
+    @NotNull
+    private IElementType[] types = new IElementType[INITIAL_LINE_CAPACITY];
+    @NotNull
+    private int[] starts = new int[INITIAL_LINE_CAPACITY];
+    @NotNull
+    private int[] ends = new int[INITIAL_LINE_CAPACITY];
+    @NotNull
+    private int[] states = new int[INITIAL_LINE_CAPACITY];
+
+    /** The number of tokens of the current line. */
+    private int count;
+
+    /** The index of the current token in the current line. */
+    private int index;
+
+    /** Whether the current line is in a block quote. */
+    private boolean inBlockQuote;
+
+    /** The list layer of the current line, 0 if it is not in a list. */
+    private int listLayer;
+
+    /** Whether the previous line was blank. */
+    private boolean afterBlankLine;
+
+    @Override public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+        delegate.start(buffer, startOffset, endOffset, initialState);
+        inBlockQuote = false;
+        listLayer = 0;
+        afterBlankLine = true;
+        readLine();
+    }
+
+    @Override public int getState() {
+        return states[index];
+    }
+
+    @Nullable @Override public IElementType getTokenType() {
+        return index < count ? types[index] : null;
+    }
+
+    @Override public int getTokenStart() {
+        return index < count ? starts[index] : delegate.getTokenStart();
+    }
+
+    @Override public int getTokenEnd() {
+        return index < count ? ends[index] : delegate.getTokenEnd();
+    }
+
+    @Override public void advance() {
+        index++;
+        if (index >= count) {
+            readLine();
+        }
+    }
+
+    @NotNull @Override public CharSequence getBufferSequence() {
+        return delegate.getBufferSequence();
+    }
+
+    @Override public int getBufferEnd() {
+        return delegate.getBufferEnd();
+    }
+
+    /** Read the tokens of the next line from the delegate lexer, up to and including its end of line. */
+    private void readLine() {
+        count = 0;
+        index = 0;
+
+        IElementType type = delegate.getTokenType();
+        while (type != null) {
+            ensureCapacity(count + 1);
+            types[count] = type;
+            starts[count] = delegate.getTokenStart();
+            ends[count] = delegate.getTokenEnd();
+            states[count] = delegate.getState();
+            count++;
+
+            delegate.advance();
+            if (type == MarkdownTokenTypes.EOL) {
+                break;
+            }
+            type = delegate.getTokenType();
+        }
+
+        if (count > 0) {
+            applyLayers();
+        } else {
+            states[0] = delegate.getState();
+        }
+    }
+
+    /** Update the enclosing structures with the current line, and replace its tokens with layered types. */
+    private void applyLayers() {
+        int first = skip(0, MarkdownTokenTypes.WHITE_SPACE);
+        final boolean inFence = isInFence();
+
+        if (first == count || types[first] == MarkdownTokenTypes.EOL) {
+            inBlockQuote = false;
+            afterBlankLine = true;
+            setLayers(first, inFence ? MarkdownLayeredTokenType.CODE_FENCE_LAYER : 0, inFence);
+            return;
+        }
+
+        int layers = 0;
+        if (inFence) {
+            layers |= MarkdownLayeredTokenType.CODE_FENCE_LAYER;
+        } else {
+            final boolean indented = first > 0;
+            if (types[first] == MarkdownTokenTypes.BLOCK_QUOTE) {
+                inBlockQuote = true;
+                first = skip(skip(first, MarkdownTokenTypes.BLOCK_QUOTE), MarkdownTokenTypes.WHITE_SPACE);
+            }
+
+            if (first < count && types[first] == MarkdownTokenTypes.LIST_BULLET) {
+                listLayer = MarkdownLayeredTokenType.BULLET_LIST_LAYER;
+            } else if (first < count && types[first] == MarkdownTokenTypes.LIST_NUMBER) {
+                listLayer = MarkdownLayeredTokenType.ORDERED_LIST_LAYER;
+            } else if (afterBlankLine && !indented) {
+                listLayer = 0;
+            }
+
+            layers |= getHeaderLevel(first);
+        }
+        if (inBlockQuote) {
+            layers |= MarkdownLayeredTokenType.BLOCK_QUOTE_LAYER;
+        }
+        layers |= listLayer;
+        afterBlankLine = false;
+
+        setLayers(skip(0, MarkdownTokenTypes.WHITE_SPACE), layers, inFence);
+
+        if (types[count - 1] == MarkdownTokenTypes.EOL && isMultiLine(count - 1)) {
+            inBlockQuote = false;
+            afterBlankLine = true;
+        }
+    }
+
+    /**
+     * Replace the tokens of the current line with layered types.
+     *
+     * @param from    the index of the first token to layer, the indentation of the line is not layered.
+     * @param layers  the layers of the line.
+     * @param inFence whether the line is in a fenced code block.
+     */
+    private void setLayers(int from, int layers, boolean inFence) {
+        for (int i = from; i < count; i++) {
+            final IElementType type = types[i];
+            if (type == MarkdownTokenTypes.EOL) {
+                continue;
+            }
+            final int tokenLayers = !inFence && type == MarkdownTokenTypes.CODE
+                                    ? layers | MarkdownLayeredTokenType.VERBATIM_LAYER
+                                    : layers;
+            types[i] = MarkdownLayeredTokenType.layered(type, tokenLayers);
+        }
+    }
+
+    /**
+     * Check whether the current line belongs to a fenced code block, fences included.
+     *
+     * @return true if a fence is open at the start of the line or opened on the line.
+     */
+    private boolean isInFence() {
+        if (states[0] == MarkdownLexerAdapter.IN_FENCE_STATE) {
+            return true;
+        }
+        for (int i = 0; i < count; i++) {
+            if (types[i] == MarkdownTokenTypes.CODE_FENCE_START || types[i] == MarkdownTokenTypes.CODE_FENCE_END) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the level of the header on the current line.
+     * <p/>
+     * The underline of a setext header is on the next line, so the first token of the next line is looked up.
+     *
+     * @param first the index of the first significant token of the line.
+     * @return the header level, 0 if the line is not a header.
+     */
+    private int getHeaderLevel(int first) {
+        if (first >= count) {
+            return 0;
+        }
+
+        final IElementType type = types[first];
+        if (type == MarkdownTokenTypes.ATX_HEADER) {
+            final CharSequence buffer = delegate.getBufferSequence();
+            int level = 0;
+            for (int i = starts[first]; i < ends[first] && level < 6; i++) {
+                if (buffer.charAt(i) == '#') {
+                    level++;
+                }
+            }
+            return level;
+        }
+
+        final IElementType underline = type == MarkdownTokenTypes.SETEXT_1 || type == MarkdownTokenTypes.SETEXT_2
+                                       ? type
+                                       : delegate.getTokenType();
+        if (underline == MarkdownTokenTypes.SETEXT_1) {
+            return 1;
+        }
+        if (underline == MarkdownTokenTypes.SETEXT_2) {
+            return 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Skip the tokens of the specified type.
+     *
+     * @param from the index of the first token of the current line to check.
+     * @param type the type of the skipped tokens.
+     * @return the index of the first token from {@code from} which is not of type {@code type}.
+     */
+    private int skip(int from, @NotNull IElementType type) {
+        int i = from;
+        while (i < count && types[i] == type) {
+            i++;
+        }
+        return i;
+    }
+
+    private boolean isMultiLine(int token) {
+        final CharSequence buffer = delegate.getBufferSequence();
+        int newLines = 0;
+        for (int i = starts[token]; i < ends[token]; i++) {
+            if (buffer.charAt(i) == '\n' && ++newLines > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= starts.length) {
+            return;
+        }
+        final int capacity = starts.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        starts = ArrayUtil.realloc(starts, capacity);
+        ends = ArrayUtil.realloc(ends, capacity);
+        states = ArrayUtil.realloc(states, capacity);
+    }
+}
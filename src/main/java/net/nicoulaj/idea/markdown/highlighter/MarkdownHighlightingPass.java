@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.highlighter;
+
+import com.intellij.codeHighlighting.TextEditorHighlightingPass;
+import com.intellij.codeInsight.daemon.impl.HighlightInfo;
+import com.intellij.codeInsight.daemon.impl.HighlightInfoType;
+import com.intellij.codeInsight.daemon.impl.UpdateHighlightersUtil;
+import com.intellij.lang.ASTNode;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.fileTypes.SyntaxHighlighter;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.tree.TokenSet;
+import net.nicoulaj.idea.markdown.lang.MarkdownElementTypes;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Highlighting pass colouring the inline elements of a Markdown file (emphasis, code spans, links...) in a range.
+ * <p/>
+ * Tokens and block structures are already coloured by {@link MarkdownEditorHighlighter}, so only the other composite
+ * nodes are considered. The tree is walked without recursion and nodes outside of the range are skipped with their
+ * subtree. Contiguous ranges with the same colour are merged before highlight infos are created, and the infos are
+ * applied to the editor in bulk.
+ * <p/>
+ * All the passes of an editor share one highlighter group, so the highlighters of a pass replace the ones of the
+ * previous passes in its range. Lazy paragraphs in the range which were not parsed yet are parsed by the pass, on the
+ * daemon thread, so they are coloured by the time they are scrolled into view.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @see MarkdownHighlightingPassFactory
+ * @since 0.10
+ */
+public class MarkdownHighlightingPass extends TextEditorHighlightingPass implements DumbAware {
+
+    private static final SyntaxHighlighter SYNTAX_HIGHLIGHTER = new MarkdownSyntaxHighlighter();
+
+    /** The composite elements coloured by {@link MarkdownEditorHighlighter}. */
+    private static final TokenSet BLOCK_STRUCTURE_TYPES = TokenSet.create(MarkdownElementTypes.ATX_1,
+                                                                          MarkdownElementTypes.ATX_2,
+                                                                          MarkdownElementTypes.ATX_3,
+                                                                          MarkdownElementTypes.ATX_4,
+                                                                          MarkdownElementTypes.ATX_5,
+                                                                          MarkdownElementTypes.ATX_6,
+                                                                          MarkdownElementTypes.SETEXT_1,
+                                                                          MarkdownElementTypes.SETEXT_2,
+                                                                          MarkdownElementTypes.BLOCK_QUOTE,
+                                                                          MarkdownElementTypes.UNORDERED_LIST,
+                                                                          MarkdownElementTypes.ORDERED_LIST,
+                                                                          MarkdownElementTypes.LIST_ITEM,
+                                                                          MarkdownElementTypes.CODE_FENCE,
+                                                                          MarkdownElementTypes.CODE_BLOCK);
+
+    @NotNull
+    private final PsiFile file;
+
+    @NotNull
+    private final TextRange range;
+
+    /** The group of the highlighters, shared by the passes of the editor. */
+    private final int group;
+
+    @NotNull
+    private List<HighlightInfo> infos = Collections.emptyList();
+
+    /**
+     * Build a new instance of {@link MarkdownHighlightingPass}.
+     *
+     * @param project   the project.
+     * @param document  the document of the file.
+     * @param file      the Markdown file.
+     * @param range    the range to highlight.
+     * @param group    the group of the highlighters, shared by the passes of the editor.
+     */
+    public MarkdownHighlightingPass(@NotNull Project project,
+                                   @NotNull Document document,
+                                   @NotNull PsiFile file,
+                                   @NotNull TextRange range,
+                                   int group) {
+        super(project, document, true);
+        this.file = file;
+        this.range = range;
+        this.group = group;
+    }
+
+    @Override public void doCollectInformation(@NotNull ProgressIndicator progress) {
+        final List<HighlightInfo> collected = new ArrayList<HighlightInfo>();
+        final ASTNode root = file.getNode();
+        ASTNode node = root != null ? root.getFirstChildNode() : null;
+        if (node == null) {
+            infos = collected;
+            return;
+        }
+
+        TextAttributesKey pendingKey = null;
+        int pendingStart = 0;
+        int pendingEnd = 0;
+
+        int offset = 0;
+        while (true) {
+            progress.checkCanceled();
+            final int end = offset + node.getTextLength();
+            final ASTNode firstChild = node.getFirstChildNode();
+
+            if (firstChild != null && end > range.getStartOffset() && offset < range.getEndOffset()) {
+                final TextAttributesKey[] keys = BLOCK_STRUCTURE_TYPES.contains(node.getElementType())
+                                                 ? TextAttributesKey.EMPTY_ARRAY
+                                                 : SYNTAX_HIGHLIGHTER.getTokenHighlights(node.getElementType());
+                final int start = Math.max(offset, range.getStartOffset());
+                final int clippedEnd = Math.min(end, range.getEndOffset());
+                if (keys.length > 0 && start < clippedEnd) {
+                    if (keys[0] == pendingKey && start == pendingEnd) {
+                        pendingEnd = clippedEnd;
+                    } else {
+                        addInfo(collected, pendingKey, pendingStart, pendingEnd);
+                        pendingKey = keys[0];
+                        pendingStart = start;
+                        pendingEnd = clippedEnd;
+                    }
+                }
+                node = firstChild;
+                continue;
+            }
+
+            if (end >= range.getEndOffset()) {
+                break;
+            }
+            offset = end;
+            while (node.getTreeNext() == null) {
+                node = node.getTreeParent();
+                if (node == null || node == root) {
+                    addInfo(collected, pendingKey, pendingStart, pendingEnd);
+                    infos = collected;
+                    return;
+                }
+            }
+            node = node.getTreeNext();
+        }
+
+        addInfo(collected, pendingKey, pendingStart, pendingEnd);
+        infos = collected;
+    }
+
+    private static void addInfo(@NotNull List<HighlightInfo> infos, TextAttributesKey key, int start, int end) {
+        if (key != null) {
+            infos.add(HighlightInfo.newHighlightInfo(HighlightInfoType.INFORMATION)
+                                   .range(start, end)
+                                   .textAttributes(key)
+                                   .createUnconditionally());
+        }
+    }
+
+    @Override public void doApplyInformationToEditor() {
+        UpdateHighlightersUtil.setHighlightersToEditor(myProject,
+                                                       myDocument,
+                                                       range.getStartOffset(),
+                                                       range.getEndOffset(),
+                                                       infos,
+                                                       getColorsScheme(),
+                                                       group);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.highlighter;
+
+import com.intellij.codeHighlighting.TextEditorHighlightingPass;
+import com.intellij.codeHighlighting.TextEditorHighlightingPassFactory;
+import com.intellij.codeHighlighting.TextEditorHighlightingPassRegistrar;
+import com.intellij.codeInsight.daemon.impl.VisibleHighlightingPassFactory;
+import com.intellij.openapi.components.AbstractProjectComponent;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.PsiFile;
+import net.nicoulaj.idea.markdown.file.MarkdownFileType;
+import net.nicoulaj.idea.markdown.settings.MarkdownGlobalSettings;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Registers the {@link MarkdownHighlightingPass}es of Markdown editors.
+ * <p/>
+ * The passes only colour inline elements, block structures are coloured by {@link MarkdownEditorHighlighter}. A
+ * first pass colours the visible part of the editor, and a second one, run after it, colours the whole file, parsing
+ * the lazy paragraphs the first one did not reach. The visible range is only computed when the daemon starts, so the
+ * second pass is what colours the text the user scrolls to. Both passes put their highlighters in the group of the
+ * first one, so each pass replaces the highlighters of the previous ones. Files above the large file threshold are not
+ * highlighted by these passes.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownHighlightingPassFactory extends AbstractProjectComponent
+        implements TextEditorHighlightingPassFactory {
+
+    /** The id of the visible range pass, which is also the highlighter group of both passes. */
+    private final int visiblePassId;
+
+    /**
+     * Build a new instance of {@link MarkdownHighlightingPassFactory}.
+     *
+     * @param project   the project.
+     * @param registrar the registrar of the project highlighting passes.
+     */
+    public MarkdownHighlightingPassFactory(@NotNull Project project,
+                                           @NotNull TextEditorHighlightingPassRegistrar registrar) {
+        super(project);
+        visiblePassId = registrar.registerTextEditorHighlightingPass(this, null, null, false, -1);
+        registrar.registerTextEditorHighlightingPass(new TextEditorHighlightingPassFactory() {
+            @Nullable @Override public TextEditorHighlightingPass createHighlightingPass(@NotNull PsiFile file,
+                                                                                       @NotNull Editor editor) {
+                return createPass(file, editor, file.getTextRange());
+            }
+        }, new int[]{visiblePassId}, null, false, -1);
+    }
+
+    @Nullable @Override public TextEditorHighlightingPass createHighlightingPass(@NotNull PsiFile file,
+                                                                               @NotNull Editor editor) {
+        return createPass(file, editor, VisibleHighlightingPassFactory.calculateVisibleRange(editor));
+    }
+
+    @Nullable
+    private TextEditorHighlightingPass createPass(@NotNull PsiFile file,
+                                                  @NotNull Editor editor,
+                                                  TextRange range) {
+        if (file.getFileType() != MarkdownFileType.INSTANCE
+            || range == null
+            || MarkdownGlobalSettings.getInstance().isLargeFile(file.getTextLength())) {
+            return null;
+        }
+        return new MarkdownHighlightingPass(myProject, editor.getDocument(), file, range, visiblePassId);
+    }
+
+    @NotNull @NonNls @Override public String getComponentName() {
+        return "MarkdownHighlightingPassFactory";
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.highlighter;
+
+import com.intellij.psi.tree.IElementType;
+import net.nicoulaj.idea.markdown.file.MarkdownFileType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Token type returned by {@link MarkdownHighlightingLexer} for a token inside block structures (headers, block quotes,
+ * lists, code blocks).
+ * <p/>
+ * It wraps the type of the token with the set of blocks enclosing it, so the editor highlighter can colour the
+ * token with the attributes of the token itself and of each of these blocks.
+ * <p/>
+ * Each layered type is a global {@link IElementType}, registered forever in the platform registry, which holds at most
+ * {@link Short#MAX_VALUE} types. Layered types are therefore only created for the combinations met by the lexer, the
+ * layers which cannot change the colours of a token are dropped before lookup (a header level in code, a second list
+ * kind), and no more than {@link #MAX_LAYERED_TYPES} are ever created: past this budget, tokens in new combinations
+ * are only coloured with the attributes of their own type.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownLayeredTokenType extends IElementType {
+
+    /** Mask of the level of the enclosing header, 0 if the token is not in a header. */
+    public static final int HEADER_LEVEL_MASK = 0x07;
+
+    /** The token is in a block quote. */
+    public static final int BLOCK_QUOTE_LAYER = 0x08;
+
+    /** The token is in an item of a bullet list. */
+    public static final int BULLET_LIST_LAYER = 0x10;
+
+    /** The token is in an item of an ordered list. */
+    public static final int ORDERED_LIST_LAYER = 0x20;
+
+    /** The token is in a fenced code block. */
+    public static final int CODE_FENCE_LAYER = 0x40;
+
+    /** The token is in an indented code block. */
+    public static final int VERBATIM_LAYER = 0x80;
+
+    /** The number of distinct layer combinations. */
+    private static final int LAYER_COMBINATIONS = 0x100;
+
+    /** The maximum number of layered types created. */
+    public static final int MAX_LAYERED_TYPES = 2048;
+
+    /** The number of layered types created, guarded by the class lock. */
+    private static int createdCount;
+
+    /**
+     * Layered types indexed by {@link IElementType#getIndex()} of their base type, then by layers.
+     * <p/>
+     * The arrays are copied on write, so readers never lock.
+     */
+    @NotNull
+    private static volatile MarkdownLayeredTokenType[][] layeredTypes = new MarkdownLayeredTokenType[0][];
+
+    @NotNull
+    private final IElementType baseType;
+
+    private final int layers;
+
+    private MarkdownLayeredTokenType(@NotNull IElementType baseType, int layers) {
+        super("LAYERED", MarkdownFileType.LANGUAGE);
+        this.baseType = baseType;
+        this.layers = layers;
+    }
+
+    /**
+     * Get the type of the token wrapped by this layered type.
+     *
+     * @return the token type.
+     */
+    @NotNull
+    public IElementType getBaseType() {
+        return baseType;
+    }
+
+    /**
+     * Get the set of blocks enclosing the token.
+     *
+     * @return a combination of the header level and of the {@code *_LAYER} flags.
+     */
+    public int getLayers() {
+        return layers;
+    }
+
+    @Override
+    @SuppressWarnings({"HardCodedStringLiteral"})
+    public String toString() {
+        return baseType + "[" + Integer.toHexString(layers) + "]";
+    }
+
+    /**
+     * Get the layered type of a token enclosed in the specified blocks, creating it if needed.
+     *
+     * @param baseType the token type.
+     * @param layers   the blocks enclosing the token.
+     * @return the layered type, or {@code baseType} itself if {@code layers} is 0 or if {@link #MAX_LAYERED_TYPES}
+     *         were already created.
+     */
+    @NotNull
+    public static IElementType layered(@NotNull IElementType baseType, int layers) {
+        final int normalized = normalize(layers);
+        if (normalized == 0) {
+            return baseType;
+        }
+
+        final int index = baseType.getIndex();
+        final MarkdownLayeredTokenType[][] types = layeredTypes;
+        final MarkdownLayeredTokenType[] byLayers = index < types.length ? types[index] : null;
+        final MarkdownLayeredTokenType result = byLayers != null ? byLayers[normalized] : null;
+        return result != null ? result : createLayeredType(baseType, normalized);
+    }
+
+    /**
+     * Drop the layers which cannot change the colours of a token.
+     * <p/>
+     * Code is never in a header, and a line is only in one kind of list.
+     *
+     * @param layers the blocks enclosing the token.
+     * @return the layers keeping the same colours.
+     */
+    static int normalize(int layers) {
+        if ((layers & (CODE_FENCE_LAYER | VERBATIM_LAYER)) != 0) {
+            layers &= ~HEADER_LEVEL_MASK;
+        }
+        if ((layers & ORDERED_LIST_LAYER) != 0) {
+            layers &= ~BULLET_LIST_LAYER;
+        }
+        return layers;
+    }
+
+    /**
+     * Get the number of layered types created so far.
+     *
+     * @return the number of {@link MarkdownLayeredTokenType}s registered.
+     */
+    public static synchronized int getCreatedCount() {
+        return createdCount;
+    }
+
+    /**
+     * Get the type of the token, stripped of its layers.
+     *
+     * @param type a token type, layered or not.
+     * @return the base type of a layered type, the type itself otherwise.
+     */
+    @Nullable
+    public static IElementType baseType(@Nullable IElementType type) {
+        return type instanceof MarkdownLayeredTokenType ? ((MarkdownLayeredTokenType) type).baseType : type;
+    }
+
+    /**
+     * Create and register a layered type.
+     * <p/>
+     * Only creation is synchronized, as each {@link IElementType} registers itself globally and must be created once.
+     * Types past the budget are not cached, so their lookups keep going through this method: they are not expected
+     * in practice, the lexer producing a few dozen combinations at most.
+     */
+    @NotNull
+    private synchronized static IElementType createLayeredType(@NotNull IElementType baseType, int layers) {
+        final int index = baseType.getIndex();
+        final MarkdownLayeredTokenType[][] types =
+                Arrays.copyOf(layeredTypes, Math.max(index + 1, layeredTypes.length));
+        final MarkdownLayeredTokenType[] byLayers = types[index] != null
+                                                    ? types[index].clone()
+                                                    : new MarkdownLayeredTokenType[LAYER_COMBINATIONS];
+        if (byLayers[layers] != null) {
+            return byLayers[layers];
+        }
+        if (createdCount >= MAX_LAYERED_TYPES) {
+            return baseType;
+        }
+
+        final MarkdownLayeredTokenType result = new MarkdownLayeredTokenType(baseType, layers);
+        createdCount++;
+        byLayers[layers] = result;
+        types[index] = byLayers;
+        layeredTypes = types;
+        return result;
+    }
+}
@@ -25,14 +25,19 @@ import com.intellij.openapi.editor.colors.TextAttributesKey;
 import com.intellij.openapi.fileTypes.SyntaxHighlighterBase;
 import com.intellij.psi.tree.IElementType;
 import net.nicoulaj.idea.markdown.lang.MarkdownTokenTypeSets;
-import net.nicoulaj.idea.markdown.lang.lexer.MarkdownLexerAdapter;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * {@link com.intellij.openapi.fileTypes.SyntaxHighlighter} implementation for the Markdown language.
+ * <p/>
+ * Tokens are returned by a {@link MarkdownHighlightingLexer}, so their highlights include the ones of the block
+ * structures enclosing them.
  *
  * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
  * @since 0.1
@@ -40,11 +45,32 @@ import java.util.Map;
 public class MarkdownSyntaxHighlighter extends SyntaxHighlighterBase {
 
     /** The {@link Lexer} instance. */
-    protected final Lexer lexer = new MarkdownLexerAdapter();
+    protected final Lexer lexer = new MarkdownHighlightingLexer();
+
+    /** The text attribute keys of each header level, by level. */
+    private static final TextAttributesKey[] HEADER_ATTR_KEYS = new TextAttributesKey[]{
+            null,
+            MarkdownHighlighterColors.HEADER_LEVEL_1_ATTR_KEY,
+            MarkdownHighlighterColors.HEADER_LEVEL_2_ATTR_KEY,
+            MarkdownHighlighterColors.HEADER_LEVEL_3_ATTR_KEY,
+            MarkdownHighlighterColors.HEADER_LEVEL_4_ATTR_KEY,
+            MarkdownHighlighterColors.HEADER_LEVEL_5_ATTR_KEY,
+            MarkdownHighlighterColors.HEADER_LEVEL_6_ATTR_KEY,
+            null
+    };
 
     /** The map of text attribute keys for each token type. */
     protected static final Map<IElementType, TextAttributesKey> ATTRIBUTES = new HashMap<IElementType, TextAttributesKey>();
 
+    /**
+     * The text attribute keys of each token type, indexed by {@link IElementType#getIndex()}, {@code null} where they
+     * are not computed yet.
+     * <p/>
+     * Each token type gets a single array, shared by all lookups. The table is copied on write, so readers never lock.
+     */
+    @NotNull
+    private static volatile TextAttributesKey[][] highlights = new TextAttributesKey[0][];
+
     static {
         fillMap(ATTRIBUTES, MarkdownTokenTypeSets.TEXT_SET, MarkdownHighlighterColors.TEXT_ATTR_KEY);
         fillMap(ATTRIBUTES, MarkdownTokenTypeSets.BOLD_SET, MarkdownHighlighterColors.BOLD_ATTR_KEY);
@@ -68,12 +94,16 @@ public class MarkdownSyntaxHighlighter extends SyntaxHighlighterBase {
         fillMap(ATTRIBUTES, MarkdownTokenTypeSets.DEFINITION_SET, MarkdownHighlighterColors.DEFINITION_ATTR_KEY);
         fillMap(ATTRIBUTES, MarkdownTokenTypeSets.HTML_BLOCK_SET, MarkdownHighlighterColors.HTML_BLOCK_ATTR_KEY);
         fillMap(ATTRIBUTES, MarkdownTokenTypeSets.INLINE_HTML_SET, MarkdownHighlighterColors.INLINE_HTML_ATTR_KEY);
+
+        for (IElementType type : ATTRIBUTES.keySet()) {
+            computeHighlights(type);
+        }
     }
 
     /**
      * Get the lexer used for highlighting a Markdown file.
      *
-     * @return an {@link MarkdownLexerAdapter}.
+     * @return an {@link MarkdownHighlightingLexer}.
      * @see #lexer
      */
     @NotNull
@@ -83,12 +113,88 @@ public class MarkdownSyntaxHighlighter extends SyntaxHighlighterBase {
 
     /**
      * Get the list of text attribute keys used for highlighting the specified token type.
+     * <p/>
+     * This is called for every token each time the editor is painted, so it is a plain array lookup, which allocates
+     * nothing. The returned array is shared and must not be modified.
      *
      * @param tokenType the token type
      * @return an array of {@link TextAttributesKey}
      */
     @NotNull
     public TextAttributesKey[] getTokenHighlights(IElementType tokenType) {
-        return pack(ATTRIBUTES.get(tokenType));
+        if (tokenType == null) {
+            return TextAttributesKey.EMPTY_ARRAY;
+        }
+
+        final int index = tokenType.getIndex();
+        final TextAttributesKey[][] table = highlights;
+        final TextAttributesKey[] result = index >= 0 && index < table.length ? table[index] : null;
+        return result != null ? result : computeHighlights(tokenType);
+    }
+
+    /**
+     * Compute and register the text attribute keys of a token type.
+     * <p/>
+     * Only computation is synchronized, it happens once per token type.
+     */
+    @NotNull
+    private synchronized static TextAttributesKey[] computeHighlights(@NotNull IElementType tokenType) {
+        final int index = tokenType.getIndex();
+        if (index < 0) {
+            return createHighlights(tokenType);
+        }
+        if (index < highlights.length && highlights[index] != null) {
+            return highlights[index];
+        }
+
+        final TextAttributesKey[] result = createHighlights(tokenType);
+        final TextAttributesKey[][] table = Arrays.copyOf(highlights, Math.max(index + 1, highlights.length));
+        table[index] = result;
+        highlights = table;
+        return result;
+    }
+
+    /**
+     * Create the text attribute keys of a token type.
+     * <p/>
+     * The keys of a {@link MarkdownLayeredTokenType} are the ones of its base type, followed by the ones of the
+     * enclosing blocks, from the outermost to the innermost.
+     */
+    @NotNull
+    private static TextAttributesKey[] createHighlights(@NotNull IElementType tokenType) {
+        if (!(tokenType instanceof MarkdownLayeredTokenType)) {
+            final TextAttributesKey key = ATTRIBUTES.get(tokenType);
+            return key != null ? new TextAttributesKey[]{key} : TextAttributesKey.EMPTY_ARRAY;
+        }
+
+        final MarkdownLayeredTokenType layeredType = (MarkdownLayeredTokenType) tokenType;
+        final int layers = layeredType.getLayers();
+        final List<TextAttributesKey> keys = new ArrayList<TextAttributesKey>();
+        addKey(keys, ATTRIBUTES.get(layeredType.getBaseType()));
+        if ((layers & MarkdownLayeredTokenType.BULLET_LIST_LAYER) != 0) {
+            addKey(keys, MarkdownHighlighterColors.BULLET_LIST_ATTR_KEY);
+            addKey(keys, MarkdownHighlighterColors.LIST_ITEM_ATTR_KEY);
+        }
+        if ((layers & MarkdownLayeredTokenType.ORDERED_LIST_LAYER) != 0) {
+            addKey(keys, MarkdownHighlighterColors.ORDERED_LIST_ATTR_KEY);
+            addKey(keys, MarkdownHighlighterColors.LIST_ITEM_ATTR_KEY);
+        }
+        if ((layers & MarkdownLayeredTokenType.BLOCK_QUOTE_LAYER) != 0) {
+            addKey(keys, MarkdownHighlighterColors.BLOCK_QUOTE_ATTR_KEY);
+        }
+        if ((layers & MarkdownLayeredTokenType.CODE_FENCE_LAYER) != 0) {
+            addKey(keys, MarkdownHighlighterColors.CODE_ATTR_KEY);
+        }
+        if ((layers & MarkdownLayeredTokenType.VERBATIM_LAYER) != 0) {
+            addKey(keys, MarkdownHighlighterColors.VERBATIM_ATTR_KEY);
+        }
+        addKey(keys, HEADER_ATTR_KEYS[layers & MarkdownLayeredTokenType.HEADER_LEVEL_MASK]);
+        return keys.toArray(new TextAttributesKey[keys.size()]);
+    }
+
+    private static void addKey(@NotNull List<TextAttributesKey> keys, TextAttributesKey key) {
+        if (key != null && !keys.contains(key)) {
+            keys.add(key);
+        }
     }
 }
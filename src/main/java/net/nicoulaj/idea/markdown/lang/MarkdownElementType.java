@@ -27,8 +27,6 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.text.MessageFormat;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * {@link IElementType} implementation for Markdown.
@@ -38,10 +36,21 @@ import java.util.Map;
  */
 public class MarkdownElementType extends IElementType {
 
+    /**
+     * Platform element types by intellij-markdown element type.
+     * <p/>
+     * The table is replaced on write, so readers never lock.
+     */
     @NotNull
-    private static final Map<org.intellij.markdown.IElementType, MarkdownElementType> markdownToPlatformTypeMap = new HashMap<org.intellij.markdown.IElementType, MarkdownElementType>();
+    private static volatile PlatformTypeTable markdownToPlatformTypes = PlatformTypeTable.EMPTY;
+
+    /**
+     * intellij-markdown element types by {@link IElementType#getIndex()} of their platform element type.
+     * <p/>
+     * The mapping is replaced on write, so readers never lock.
+     */
     @NotNull
-    private static final Map<IElementType, org.intellij.markdown.IElementType> platformToMarkdownTypeMap = new HashMap<IElementType, org.intellij.markdown.IElementType>();
+    private static volatile TypeMapping platformToMarkdownTypes = new TypeMapping(0, new org.intellij.markdown.IElementType[0]);
 
     /**
      * Build a new instance of {@link MarkdownElementType}.
@@ -63,26 +72,175 @@ public class MarkdownElementType extends IElementType {
         return MessageFormat.format("Markdown:{0}", super.toString());
     }
 
+    /**
+     * Get the platform element type matching an intellij-markdown element type, creating it if needed.
+     * <p/>
+     * Blocks which can be reparsed on their own get a {@link MarkdownReparseableElementType}.
+     *
+     * @param markdownType the intellij-markdown element type.
+     * @return the platform element type.
+     */
     @Nullable
-    public synchronized static IElementType platformType(@Nullable org.intellij.markdown.IElementType markdownType) {
+    public static IElementType platformType(@Nullable org.intellij.markdown.IElementType markdownType) {
         if (markdownType == null) {
             return null;
         }
 
-        if (markdownToPlatformTypeMap.containsKey(markdownType)) {
-            return markdownToPlatformTypeMap.get(markdownType);
-        }
-        final MarkdownElementType result = new MarkdownElementType(markdownType.toString());
-        markdownToPlatformTypeMap.put(markdownType, result);
-        platformToMarkdownTypeMap.put(result, markdownType);
-        return result;
+        final IElementType result = markdownToPlatformTypes.get(markdownType);
+        return result != null ? result : createPlatformType(markdownType);
     }
 
+    /**
+     * Get the intellij-markdown element type matching a platform element type.
+     *
+     * @param platformType the platform element type.
+     * @return the intellij-markdown element type, or {@code null} if the platform type was not created by
+     *         {@link #platformType(org.intellij.markdown.IElementType)}.
+     */
     @Nullable
-    public synchronized static org.intellij.markdown.IElementType markdownType(@Nullable IElementType platformType) {
+    public static org.intellij.markdown.IElementType markdownType(@Nullable IElementType platformType) {
         if (platformType == null) {
             return null;
         }
-        return platformToMarkdownTypeMap.get(platformType);
+
+        return platformToMarkdownTypes.get(platformType.getIndex());
+    }
+
+    /**
+     * Create and register the platform element type of an intellij-markdown element type.
+     * <p/>
+     * Only creation is synchronized, as each {@link IElementType} registers itself globally and must be created once.
+     */
+    @NotNull
+    private synchronized static IElementType createPlatformType(@NotNull org.intellij.markdown.IElementType markdownType) {
+        final IElementType existing = markdownToPlatformTypes.get(markdownType);
+        if (existing != null) {
+            return existing;
+        }
+
+        final IElementType result = MarkdownReparseableElementType.isReparseable(markdownType)
+                                    ? new MarkdownReparseableElementType(markdownType)
+                                    : new MarkdownElementType(markdownType.toString());
+
+        platformToMarkdownTypes = platformToMarkdownTypes.with(result.getIndex(), markdownType);
+
+        markdownToPlatformTypes = markdownToPlatformTypes.with(markdownType, result);
+        return result;
+    }
+
+    /**
+     * Immutable open addressing table of platform element types, keyed by the identity of intellij-markdown element
+     * types.
+     * <p/>
+     * {@link #platformType(org.intellij.markdown.IElementType)} runs once per token, so a lookup only costs the
+     * identity hash code of the type and a few reference comparisons, without the {@code hashCode()} and
+     * {@code equals()} calls of a map. The table is at most half full, so probing always ends on an empty slot.
+     */
+    private static class PlatformTypeTable {
+        private static final PlatformTypeTable EMPTY =
+                new PlatformTypeTable(new org.intellij.markdown.IElementType[16], new IElementType[16], 0);
+
+        @NotNull
+        private final org.intellij.markdown.IElementType[] keys;
+        @NotNull
+        private final IElementType[] values;
+        private final int size;
+
+        private PlatformTypeTable(@NotNull org.intellij.markdown.IElementType[] keys,
+                                  @NotNull IElementType[] values,
+                                  int size) {
+            this.keys = keys;
+            this.values = values;
+            this.size = size;
+        }
+
+        @Nullable
+        private IElementType get(@NotNull org.intellij.markdown.IElementType markdownType) {
+            final int mask = keys.length - 1;
+            for (int i = slot(markdownType, mask); ; i = (i + 1) & mask) {
+                final org.intellij.markdown.IElementType key = keys[i];
+                if (key == markdownType) {
+                    return values[i];
+                }
+                if (key == null) {
+                    return null;
+                }
+            }
+        }
+
+        @NotNull
+        private PlatformTypeTable with(@NotNull org.intellij.markdown.IElementType markdownType,
+                                       @NotNull IElementType platformType) {
+            int capacity = keys.length;
+            while ((size + 1) * 2 > capacity) {
+                capacity *= 2;
+            }
+
+            final org.intellij.markdown.IElementType[] newKeys = new org.intellij.markdown.IElementType[capacity];
+            final IElementType[] newValues = new IElementType[capacity];
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    insert(newKeys, newValues, keys[i], values[i]);
+                }
+            }
+            insert(newKeys, newValues, markdownType, platformType);
+            return new PlatformTypeTable(newKeys, newValues, size + 1);
+        }
+
+        private static void insert(@NotNull org.intellij.markdown.IElementType[] keys,
+                                   @NotNull IElementType[] values,
+                                   @NotNull org.intellij.markdown.IElementType markdownType,
+                                   @NotNull IElementType platformType) {
+            final int mask = keys.length - 1;
+            int i = slot(markdownType, mask);
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = markdownType;
+            values[i] = platformType;
+        }
+
+        private static int slot(@NotNull Object key, int mask) {
+            final int hash = System.identityHashCode(key);
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+
+    /**
+     * Immutable mapping of platform element type indices to intellij-markdown element types.
+     * <p/>
+     * The array starts at the index of the first Markdown type, so it does not span the types registered by the
+     * platform and other plugins before it.
+     */
+    private static class TypeMapping {
+        /** The platform index of the first element of {@link #types}. */
+        private final int base;
+        @NotNull
+        private final org.intellij.markdown.IElementType[] types;
+
+        private TypeMapping(int base, @NotNull org.intellij.markdown.IElementType[] types) {
+            this.base = base;
+            this.types = types;
+        }
+
+        @Nullable
+        private org.intellij.markdown.IElementType get(int index) {
+            final int offset = index - base;
+            return offset >= 0 && offset < types.length ? types[offset] : null;
+        }
+
+        @NotNull
+        private TypeMapping with(int index, @NotNull org.intellij.markdown.IElementType markdownType) {
+            if (types.length == 0) {
+                return new TypeMapping(index, new org.intellij.markdown.IElementType[]{markdownType});
+            }
+
+            final int newBase = Math.min(base, index);
+            final int length = Math.max(base + types.length, index + 1) - newBase;
+            final org.intellij.markdown.IElementType[] newTypes = new org.intellij.markdown.IElementType[length];
+            System.arraycopy(types, 0, newTypes, base - newBase, types.length);
+            newTypes[index - newBase] = markdownType;
+            return new TypeMapping(newBase, newTypes);
+        }
     }
 }
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.lang;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.Language;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.impl.source.tree.LazyParseableElement;
+import com.intellij.psi.tree.IReparseableElementType;
+import net.nicoulaj.idea.markdown.file.MarkdownFileType;
+import net.nicoulaj.idea.markdown.lang.parser.MarkdownParserAdapter;
+import org.intellij.markdown.MarkdownElementTypes;
+import org.intellij.markdown.MarkdownTokenTypes;
+import org.intellij.markdown.ast.LeafASTNode;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.text.MessageFormat;
+import java.util.List;
+
+/**
+ * {@link IReparseableElementType} for Markdown blocks which can be reparsed on their own.
+ * <p/>
+ * When the text of such a block changes, the new text is parsed alone. If it still yields a single block of the same
+ * type, the platform only replaces this block instead of reparsing the whole document. Text which may depend on an
+ * enclosing container (block quote markers, list item indentation) is rejected and triggers a full reparse.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @see MarkdownElementType#platformType(org.intellij.markdown.IElementType)
+ * @since 0.10
+ */
+public class MarkdownReparseableElementType extends IReparseableElementType {
+
+    /** The intellij-markdown type of the block. */
+    @NotNull
+    private final org.intellij.markdown.IElementType markdownType;
+
+    /**
+     * Build a new instance of {@link MarkdownReparseableElementType}.
+     *
+     * @param markdownType the intellij-markdown type of the block.
+     */
+    public MarkdownReparseableElementType(@NotNull org.intellij.markdown.IElementType markdownType) {
+        super(markdownType.toString(), MarkdownFileType.LANGUAGE);
+        this.markdownType = markdownType;
+    }
+
+    /**
+     * Check whether the specified intellij-markdown type denotes a block which can be reparsed on its own.
+     *
+     * @param markdownType the intellij-markdown type.
+     * @return true for paragraphs, list items, block quotes and code fences.
+     */
+    public static boolean isReparseable(@NotNull org.intellij.markdown.IElementType markdownType) {
+        return markdownType == MarkdownElementTypes.PARAGRAPH
+               || markdownType == MarkdownElementTypes.LIST_ITEM
+               || markdownType == MarkdownElementTypes.BLOCK_QUOTE
+               || markdownType == MarkdownElementTypes.CODE_FENCE;
+    }
+
+    /**
+     * Build in {@link String} representation of this {@link MarkdownReparseableElementType}.
+     *
+     * @return the String representation based on {@link com.intellij.psi.tree.IElementType#toString()}.
+     */
+    @Override
+    @SuppressWarnings({"HardCodedStringLiteral"})
+    public String toString() {
+        return MessageFormat.format("Markdown:{0}", super.toString());
+    }
+
+    @Override
+    public ASTNode createNode(CharSequence text) {
+        return new LazyParseableElement(this, text);
+    }
+
+    /**
+     * Check whether the new text of a block of this type can be reparsed on its own.
+     *
+     * @param buffer       the new text of the block.
+     * @param fileLanguage the language of the file.
+     * @param project      the project containing the file.
+     * @return true if the text still is a single, self-contained block of this type.
+     */
+    @Override
+    public boolean isParsable(CharSequence buffer, Language fileLanguage, Project project) {
+        return isSelfContained(buffer)
+               && findBlock(MarkdownParserAdapter.buildMarkdownTree(buffer), buffer.length()) != null;
+    }
+
+    /**
+     * Find the block of this type spanning the whole text of a tree built for this block alone.
+     *
+     * @param root   the root of the tree.
+     * @param length the length of the parsed text.
+     * @return the block node, or {@code null} if the tree is not made of a single block of this type.
+     */
+    @Nullable
+    public org.intellij.markdown.ast.ASTNode findBlock(@NotNull org.intellij.markdown.ast.ASTNode root, int length) {
+        org.intellij.markdown.ast.ASTNode block = getSingleCompositeChild(root);
+
+        if (block != null && markdownType == MarkdownElementTypes.LIST_ITEM) {
+            block = block.getType() == MarkdownElementTypes.ORDERED_LIST || block.getType() == MarkdownElementTypes.UNORDERED_LIST
+                    ? getSingleCompositeChild(block)
+                    : null;
+        }
+
+        if (block == null || block.getType() != markdownType || block.getStartOffset() != 0 || block.getEndOffset() != length) {
+            return null;
+        }
+
+        // An unclosed fence would swallow the rest of the document.
+        if (markdownType == MarkdownElementTypes.CODE_FENCE) {
+            final List<org.intellij.markdown.ast.ASTNode> children = block.getChildren();
+            if (children.isEmpty() || children.get(children.size() - 1).getType() != MarkdownTokenTypes.CODE_FENCE_END) {
+                return null;
+            }
+        }
+
+        return block;
+    }
+
+    @Nullable
+    private static org.intellij.markdown.ast.ASTNode getSingleCompositeChild(@NotNull org.intellij.markdown.ast.ASTNode node) {
+        org.intellij.markdown.ast.ASTNode result = null;
+        for (org.intellij.markdown.ast.ASTNode child : node.getChildren()) {
+            if (child instanceof LeafASTNode) {
+                continue;
+            }
+            if (result != null) {
+                return null;
+            }
+            result = child;
+        }
+        return result;
+    }
+
+    /**
+     * Check the text of a block does not carry markers or indentation belonging to an enclosing container, in which
+     * case parsing it alone would not give the same result as parsing it in place.
+     *
+     * @param text the text of the block.
+     * @return true if the block can be parsed alone.
+     */
+    public boolean isSelfContained(@NotNull CharSequence text) {
+        if (text.length() == 0 || isBlank(text.charAt(0))) {
+            return false;
+        }
+
+        if (markdownType == MarkdownElementTypes.PARAGRAPH) {
+            for (int i = nextLine(text, 0); i < text.length(); i = nextLine(text, i)) {
+                final char c = text.charAt(i);
+                if (c == ' ' || c == '\t' || c == '>') {
+                    return false;
+                }
+            }
+        } else if (markdownType == MarkdownElementTypes.BLOCK_QUOTE) {
+            final int depth = getQuoteDepth(text, 0);
+            for (int i = nextLine(text, 0); i < text.length(); i = nextLine(text, i)) {
+                if (text.charAt(i) != '>' || getQuoteDepth(text, i) > depth) {
+                    return false;
+                }
+            }
+        } else if (markdownType == MarkdownElementTypes.LIST_ITEM) {
+            final int contentIndent = getListItemContentIndent(text);
+            for (int i = nextLine(text, 0); i < text.length(); i = nextLine(text, i)) {
+                final int indent = getIndent(text, i);
+                final int contentStart = i + countBlanks(text, i);
+                if ((contentStart < text.length() && text.charAt(contentStart) == '>') || indent >= contentIndent + 4) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private static int nextLine(@NotNull CharSequence text, int offset) {
+        while (offset < text.length() && text.charAt(offset) != '\n') {
+            offset++;
+        }
+        return offset + 1;
+    }
+
+    private static int getQuoteDepth(@NotNull CharSequence text, int lineStart) {
+        int depth = 0;
+        for (int i = lineStart; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '>') {
+                depth++;
+            } else if (c != ' ') {
+                break;
+            }
+        }
+        return depth;
+    }
+
+    private static int getListItemContentIndent(@NotNull CharSequence text) {
+        int i = 0;
+        while (i < text.length() && Character.isDigit(text.charAt(i))) {
+            i++;
+        }
+        if (i < text.length() && "-+*.)".indexOf(text.charAt(i)) >= 0) {
+            i++;
+        }
+        return i + countBlanks(text, i);
+    }
+
+    private static int getIndent(@NotNull CharSequence text, int lineStart) {
+        int indent = 0;
+        for (int i = lineStart; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == ' ') {
+                indent++;
+            } else if (c == '\t') {
+                indent += 4 - indent % 4;
+            } else if (c == '\n' || c == '\r') {
+                // Blank lines do not constrain the item content.
+                return 0;
+            } else {
+                break;
+            }
+        }
+        return indent;
+    }
+
+    private static int countBlanks(@NotNull CharSequence text, int offset) {
+        int count = 0;
+        while (offset + count < text.length() && (text.charAt(offset + count) == ' ' || text.charAt(offset + count) == '\t')) {
+            count++;
+        }
+        return count;
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+}
@@ -22,50 +22,182 @@ package net.nicoulaj.idea.markdown.lang.lexer;
 
 import com.intellij.lexer.LexerBase;
 import com.intellij.psi.tree.IElementType;
+import com.intellij.util.text.CharSequenceSubSequence;
 import net.nicoulaj.idea.markdown.lang.MarkdownElementType;
+import org.intellij.markdown.MarkdownTokenTypes;
 import org.intellij.markdown.lexer.MarkdownLexer;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+/**
+ * {@link com.intellij.lexer.Lexer} adapter for the intellij-markdown lexer.
+ * <p/>
+ * The state reported for a token tells whether lexing can be restarted from it: a token which starts a line right
+ * after a blank line, outside of a fenced code block or an HTML block, begins a new top-level block and gets
+ * {@link #BLOCK_BOUNDARY_STATE}. Editor highlighters only restart lexing from such tokens, so re-highlighting after
+ * an edit only re-lexes the surrounding blocks instead of the whole document.
+ * <p/>
+ * Lexing may only be restarted at {@link #BLOCK_BOUNDARY_STATE}: the delegate lexer always starts outside of any
+ * block, so the other states only describe tokens and cannot be resumed from.
+ * <p/>
+ * The delegate lexer runs over a window of the platform buffer, which is never copied. Runs of adjacent
+ * {@link MarkdownTokenTypes#TEXT} or {@link MarkdownTokenTypes#WHITE_SPACE} tokens are coalesced into single tokens:
+ * they do not affect the structure of the document, and fewer tokens mean fewer leaves in the tree.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.1
+ */
 public class MarkdownLexerAdapter extends LexerBase {
+
+    /** State of a token which starts a top-level block, lexing may be restarted from it. */
+    public static final int BLOCK_BOUNDARY_STATE = 0;
+
+    /** State of a token inside a block. */
+    public static final int IN_BLOCK_STATE = 1;
+
+    /** State of a token inside a fenced code block. */
+    public static final int IN_FENCE_STATE = 2;
+
     @NotNull
     private MarkdownLexer delegateLexer = new MarkdownLexer("");
 
+    @NotNull
+    private CharSequence buffer = "";
+
     private int startOffset;
 
     private int endOffset;
 
+    private int state;
+
+    private boolean inFence;
+
+    /** The type of the current token. */
+    @Nullable
+    private org.intellij.markdown.IElementType tokenType;
+
+    /** The start of the current token, relative to {@link #startOffset}. */
+    private int tokenStart;
+
+    /** The end of the current token, relative to {@link #startOffset}. */
+    private int tokenEnd;
+
+    /** Whether the delegate lexer is already on the token following the current one. */
+    private boolean delegateAhead;
+
     @Override public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+        this.buffer = buffer;
         this.startOffset = startOffset;
         this.endOffset = endOffset;
-        delegateLexer = new MarkdownLexer(buffer.subSequence(startOffset, endOffset).toString());
+        this.state = initialState;
+        this.inFence = false;
+        delegateLexer = new MarkdownLexer(startOffset == 0 && endOffset == buffer.length()
+                                          ? buffer
+                                          : new CharSequenceSubSequence(buffer, startOffset, endOffset));
+        locateToken();
     }
 
     @Override public int getState() {
-        return 1;
+        return state;
     }
 
     @Nullable @Override public IElementType getTokenType() {
-        return MarkdownElementType.platformType(delegateLexer.getType());
+        return MarkdownElementType.platformType(tokenType);
     }
 
     @Override public int getTokenStart() {
-        return delegateLexer.getTokenStart() + startOffset;
+        return tokenStart + startOffset;
     }
 
     @Override public int getTokenEnd() {
-        return delegateLexer.getTokenEnd() + startOffset;
+        return tokenEnd + startOffset;
     }
 
     @Override public void advance() {
-        delegateLexer.advance();
+        if (tokenType == MarkdownTokenTypes.CODE_FENCE_START) {
+            inFence = true;
+        } else if (tokenType == MarkdownTokenTypes.CODE_FENCE_END) {
+            inFence = false;
+        }
+
+        if (!delegateAhead) {
+            delegateLexer.advance();
+        }
+        locateToken();
+        state = computeState();
+    }
+
+    /** Make the token of the delegate lexer the current token, merged with the following ones if it is coalesced. */
+    private void locateToken() {
+        tokenType = delegateLexer.getType();
+        tokenStart = delegateLexer.getTokenStart();
+        tokenEnd = delegateLexer.getTokenEnd();
+        delegateAhead = false;
+
+        if (tokenType == MarkdownTokenTypes.TEXT || tokenType == MarkdownTokenTypes.WHITE_SPACE) {
+            delegateLexer.advance();
+            delegateAhead = true;
+            while (delegateLexer.getType() == tokenType) {
+                tokenEnd = delegateLexer.getTokenEnd();
+                delegateLexer.advance();
+            }
+        }
     }
 
     @NotNull @Override public CharSequence getBufferSequence() {
-        return delegateLexer.getOriginalText();
+        return buffer;
     }
 
     @Override public int getBufferEnd() {
         return endOffset;
     }
+
+    /**
+     * Compute the state of the current token.
+     *
+     * @return {@link #BLOCK_BOUNDARY_STATE} if the current token starts a top-level block.
+     */
+    private int computeState() {
+        if (inFence) {
+            return IN_FENCE_STATE;
+        }
+
+        if (tokenType == null || tokenType == MarkdownTokenTypes.HTML_BLOCK) {
+            return IN_BLOCK_STATE;
+        }
+
+        return isBlockStart(getTokenStart()) ? BLOCK_BOUNDARY_STATE : IN_BLOCK_STATE;
+    }
+
+    /**
+     * Check whether the specified offset is the first non-blank character of a non indented line which follows a
+     * blank line.
+     *
+     * @param offset the offset in {@link #buffer}.
+     * @return true if a new top-level block starts at the offset.
+     */
+    private boolean isBlockStart(int offset) {
+        if (offset <= 0 || offset >= buffer.length() || buffer.charAt(offset - 1) != '\n') {
+            return false;
+        }
+
+        if (isBlank(buffer.charAt(offset))) {
+            return false;
+        }
+
+        for (int i = offset - 2; i >= 0; i--) {
+            final char c = buffer.charAt(i);
+            if (c == '\n') {
+                return true;
+            }
+            if (!isBlank(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.lang.parser;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressManager;
+
+/**
+ * Counts units of work and checks for cancellation of the current process every {@link #INTERVAL} units.
+ * <p/>
+ * Checking on every token would cost more than the work itself, while never checking lets stale parses of large
+ * documents run to completion. Outside of the IDE (in tests) no check is done.
+ * <p/>
+ * A checkpoint is not thread-safe: each thread of work, such as each segment of a parallel parse, has its own.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+class CancellationCheckpoint {
+
+    /** The number of units of work between two checks, a power of two. */
+    static final int INTERVAL = 1 << 12;
+
+    private int count;
+
+    /**
+     * Record one unit of work, and check for cancellation if the interval is reached.
+     *
+     * @throws com.intellij.openapi.progress.ProcessCanceledException if the current process was canceled.
+     */
+    void check() {
+        if ((++count & (INTERVAL - 1)) == 0 && ApplicationManager.getApplication() != null) {
+            ProgressManager.checkCanceled();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.lang.parser;
+
+import net.nicoulaj.idea.markdown.lang.MarkdownElementType;
+import net.nicoulaj.idea.markdown.lang.lexer.MarkdownLexerAdapter;
+import org.intellij.markdown.parser.TokensCache;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link TokensCache} filled from {@link MarkdownLexerAdapter}, used to parse text outside of a
+ * {@link com.intellij.lang.PsiBuilder}.
+ * <p/>
+ * Tokens are the ones a {@link com.intellij.lang.PsiBuilder} would see for the same text, so trees built from both
+ * caches match.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class LexerTokensCache extends TokensCache {
+    @NotNull
+    private final List<TokenInfo> cachedTokens;
+    @NotNull
+    private final CharSequence originalText;
+
+    public LexerTokensCache(@NotNull CharSequence originalText) {
+        this.originalText = originalText;
+        cachedTokens = new ArrayList<TokenInfo>();
+
+        cacheTokens();
+        verify();
+    }
+
+    private void cacheTokens() {
+        final MarkdownLexerAdapter lexer = new MarkdownLexerAdapter();
+        final CancellationCheckpoint checkpoint = new CancellationCheckpoint();
+        lexer.start(originalText);
+
+        for (int i = 0; lexer.getTokenType() != null; ++i) {
+            checkpoint.check();
+            cachedTokens.add(new TokenInfo(MarkdownElementType.markdownType(lexer.getTokenType()),
+                                           lexer.getTokenStart(),
+                                           lexer.getTokenEnd(),
+                                           i,
+                                           i));
+            lexer.advance();
+        }
+    }
+
+    @NotNull @Override public List<TokenInfo> getCachedTokens() {
+        return cachedTokens;
+    }
+
+    @NotNull @Override public List<TokenInfo> getFilteredTokens() {
+        return cachedTokens;
+    }
+
+    @NotNull @Override public CharSequence getOriginalText() {
+        return originalText;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.lang.parser;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.text.StringUtil;
+import org.intellij.markdown.ast.ASTNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Project service owning the intellij-markdown AST of each Markdown document.
+ * <p/>
+ * Consumers which need the full AST of a document (with its leaves) should get it from here rather than parsing the
+ * document themselves: the tree is cached per document until the document modification stamp changes, and a document
+ * is parsed once per modification stamp even when several consumers ask at the same time. The only consumer is the
+ * parser based preview; the annotator, folding, structure view and links work on the PSI.
+ * <p/>
+ * The service mostly runs a parse of its own, next to the PSI parse. Once a document has been requested,
+ * {@link MarkdownParserAdapter} publishes here the AST it builds when the PSI of the whole document is parsed, which
+ * saves that parse. Most edits only reparse the edited block though, and the AST of a block cannot stand for the
+ * document, so nothing is published then and the service parses the document itself. Documents nobody requested are
+ * not kept, as the PSI parse otherwise drops the AST as soon as it is packed.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownDocumentTreeService {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** The tree of each document, dropped with the document. Guards {@link #pending}. */
+    private final Map<Document, Entry> entries = new WeakHashMap<Document, Entry>();
+
+    /** The parse running for each document, if any. */
+    private final Map<Document, Pending> pending = new HashMap<Document, Pending>();
+
+    /**
+     * Get the instance of this service for the specified project.
+     *
+     * @param project the project.
+     * @return the {@link MarkdownDocumentTreeService} of the project.
+     */
+    public static MarkdownDocumentTreeService getInstance(@NotNull Project project) {
+        return ServiceManager.getService(project, MarkdownDocumentTreeService.class);
+    }
+
+    /**
+     * Get the AST of the current content of the specified document, parsing it if needed.
+     * <p/>
+     * If the document is already being parsed at the same modification stamp, the parse is awaited instead of being
+     * run again.
+     *
+     * @param document the Markdown document.
+     * @return the root of the intellij-markdown AST.
+     * @throws ProcessCanceledException if the parse was canceled.
+     */
+    @NotNull
+    public ASTNode getTree(@NotNull final Document document) {
+        final ASTNode cached = getCachedTree(document, document.getModificationStamp());
+        if (cached != null) {
+            return cached;
+        }
+
+        // The text is only copied on a miss, with the stamp it belongs to.
+        final Snapshot snapshot = ApplicationManager.getApplication().runReadAction(new Computable<Snapshot>() {
+            public Snapshot compute() {
+                return new Snapshot(document.getModificationStamp(), document.getText());
+            }
+        });
+
+        final FutureTask<ASTNode> task;
+        final boolean owner;
+        synchronized (entries) {
+            final ASTNode tree = getCachedTree(document, snapshot.stamp);
+            if (tree != null) {
+                return tree;
+            }
+
+            final Pending running = pending.get(document);
+            owner = running == null || running.stamp != snapshot.stamp;
+            if (owner) {
+                task = new FutureTask<ASTNode>(new Callable<ASTNode>() {
+                    public ASTNode call() {
+                        return ParallelMarkdownParser.buildMarkdownTree(new LexerTokensCache(snapshot.text));
+                    }
+                });
+                pending.put(document, new Pending(snapshot.stamp, task));
+            } else {
+                task = running.task;
+            }
+        }
+
+        if (owner) {
+            misses.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                synchronized (entries) {
+                    final Pending running = pending.get(document);
+                    if (running != null && running.task == task) {
+                        pending.remove(document);
+                    }
+                }
+            }
+        }
+
+        final ASTNode tree = await(task);
+        if (owner) {
+            store(document, snapshot.stamp, tree);
+        }
+        return tree;
+    }
+
+    private ASTNode getCachedTree(@NotNull Document document, long stamp) {
+        synchronized (entries) {
+            final Entry entry = entries.get(document);
+            final ASTNode tree = entry != null && entry.stamp == stamp ? entry.getTree() : null;
+            if (tree != null) {
+                hits.incrementAndGet();
+            }
+            return tree;
+        }
+    }
+
+    /**
+     * Publish the AST built by the PSI parse of a whole document.
+     * <p/>
+     * The tree is only kept if the document was already requested with {@link #getTree(Document)} and still has the
+     * parsed text, as the PSI of a document may be committed from an older snapshot of its text. Block reparses have
+     * no AST of the whole document to publish, so after them the next {@link #getTree(Document)} parses the document.
+     *
+     * @param document the Markdown document.
+     * @param text     the parsed text.
+     * @param tree     the root of the intellij-markdown AST of the text.
+     */
+    public void publish(@NotNull Document document, @NotNull CharSequence text, @NotNull ASTNode tree) {
+        synchronized (entries) {
+            if (!entries.containsKey(document)) {
+                return;
+            }
+        }
+        if (StringUtil.equals(document.getCharsSequence(), text)) {
+            store(document, document.getModificationStamp(), tree);
+        }
+    }
+
+    private void store(@NotNull Document document, long stamp, @NotNull ASTNode tree) {
+        synchronized (entries) {
+            final Entry entry = entries.get(document);
+            if (entry == null || entry.stamp <= stamp) {
+                entries.put(document, new Entry(stamp, tree));
+            }
+        }
+    }
+
+    @NotNull
+    private static ASTNode await(@NotNull FutureTask<ASTNode> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessCanceledException();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Get the number of requests served from the cache.
+     *
+     * @return the hit count.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of requests which needed a parse.
+     *
+     * @return the miss count.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of documents with a cached tree.
+     *
+     * @return the number of documents.
+     */
+    public int getDocumentCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override public String toString() {
+        return "MarkdownDocumentTreeService{documents=" + getDocumentCount() + ", hits=" + hits + ", misses=" + misses
+               + '}';
+    }
+
+    /** The content of a document at a given modification stamp. */
+    private static class Snapshot {
+        private final long stamp;
+        @NotNull
+        private final String text;
+
+        private Snapshot(long stamp, @NotNull String text) {
+            this.stamp = stamp;
+            this.text = text;
+        }
+    }
+
+    /** The tree of a document at a given modification stamp. */
+    private static class Entry {
+        private final long stamp;
+        @NotNull
+        private final SoftReference<ASTNode> tree;
+
+        private Entry(long stamp, @NotNull ASTNode tree) {
+            this.stamp = stamp;
+            this.tree = new SoftReference<ASTNode>(tree);
+        }
+
+        private ASTNode getTree() {
+            return tree.get();
+        }
+    }
+
+    /** The parse of a document at a given modification stamp. */
+    private static class Pending {
+        private final long stamp;
+        @NotNull
+        private final FutureTask<ASTNode> task;
+
+        private Pending(long stamp, @NotNull FutureTask<ASTNode> task) {
+            this.stamp = stamp;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.lang.parser;
+
+import com.intellij.psi.tree.IElementType;
+import com.intellij.util.ArrayUtil;
+import net.nicoulaj.idea.markdown.lang.MarkdownElementType;
+import org.intellij.markdown.ast.ASTNode;
+import org.intellij.markdown.ast.LeafASTNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact form of the composite nodes of an intellij-markdown AST, stored in preorder in parallel arrays.
+ * <p/>
+ * Each node is described by its platform element type index, its start and end offsets and the size of its subtree
+ * (the node and all its composite descendants), so the children of node {@code i} start at {@code i + 1} and the next
+ * sibling of node {@code i} is at {@code i + getSubtreeSize(i)}. Leaves are not kept: they are the tokens of the
+ * document, which the {@link com.intellij.lang.PsiBuilder} already has.
+ * <p/>
+ * The tree takes a handful of ints per node instead of an object graph with child lists, so it is the form in which
+ * trees are replayed into the builder and kept in {@link MarkdownTreeCache}. Instances are immutable.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownPackedTree {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    @NotNull
+    private final short[] types;
+    @NotNull
+    private final int[] starts;
+    @NotNull
+    private final int[] ends;
+    @NotNull
+    private final int[] subtreeSizes;
+    private final int size;
+
+    private MarkdownPackedTree(@NotNull short[] types,
+                               @NotNull int[] starts,
+                               @NotNull int[] ends,
+                               @NotNull int[] subtreeSizes,
+                               int size) {
+        this.types = types;
+        this.starts = starts;
+        this.ends = ends;
+        this.subtreeSizes = subtreeSizes;
+        this.size = size;
+    }
+
+    /**
+     * Pack the specified AST.
+     *
+     * @param root the root of the AST.
+     * @return the packed tree.
+     */
+    @NotNull
+    public static MarkdownPackedTree pack(@NotNull ASTNode root) {
+        return pack(Collections.singletonList(root));
+    }
+
+    /**
+     * Pack the specified sequence of ASTs.
+     *
+     * @param roots the roots of the ASTs, in document order.
+     * @return the packed trees, one after the other.
+     */
+    @NotNull
+    public static MarkdownPackedTree pack(@NotNull List<ASTNode> roots) {
+        return new Packer().pack(roots);
+    }
+
+    /**
+     * Get the number of nodes.
+     *
+     * @return the number of composite nodes of the tree.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the platform element type of a node.
+     *
+     * @param index the preorder index of the node.
+     * @return the element type.
+     */
+    @NotNull
+    public IElementType getType(int index) {
+        return IElementType.find(types[index]);
+    }
+
+    /**
+     * Get the start offset of a node.
+     *
+     * @param index the preorder index of the node.
+     * @return the offset in the document.
+     */
+    public int getStartOffset(int index) {
+        return starts[index];
+    }
+
+    /**
+     * Get the end offset of a node.
+     *
+     * @param index the preorder index of the node.
+     * @return the offset in the document.
+     */
+    public int getEndOffset(int index) {
+        return ends[index];
+    }
+
+    /**
+     * Get the number of nodes in the subtree of a node, including the node itself.
+     *
+     * @param index the preorder index of the node.
+     * @return the subtree size, at least 1.
+     */
+    public int getSubtreeSize(int index) {
+        return subtreeSizes[index];
+    }
+
+    /** Walks ASTs in preorder with an explicit stack, so trees of any depth can be packed. */
+    private static class Packer {
+        private short[] types = new short[INITIAL_CAPACITY];
+        private int[] starts = new int[INITIAL_CAPACITY];
+        private int[] ends = new int[INITIAL_CAPACITY];
+        private int[] subtreeSizes = new int[INITIAL_CAPACITY];
+        private int size;
+
+        /** The open nodes, from the outermost to the innermost. */
+        private ASTNode[] nodes = new ASTNode[INITIAL_CAPACITY];
+        /** The index of the next child to visit of each open node. */
+        private int[] nextChildren = new int[INITIAL_CAPACITY];
+        /** The preorder index of each open node. */
+        private int[] indices = new int[INITIAL_CAPACITY];
+
+        @NotNull
+        private MarkdownPackedTree pack(@NotNull List<ASTNode> roots) {
+            final CancellationCheckpoint checkpoint = new CancellationCheckpoint();
+
+            for (ASTNode root : roots) {
+                int depth = enter(root, 0);
+                while (depth > 0) {
+                    checkpoint.check();
+                    final int top = depth - 1;
+                    final List<ASTNode> children = nodes[top].getChildren();
+
+                    if (nextChildren[top] < children.size()) {
+                        depth = enter(children.get(nextChildren[top]++), depth);
+                    } else {
+                        subtreeSizes[indices[top]] = size - indices[top];
+                        nodes[top] = null;
+                        depth = top;
+                    }
+                }
+            }
+
+            return new MarkdownPackedTree(Arrays.copyOf(types, size),
+                                          ArrayUtil.realloc(starts, size),
+                                          ArrayUtil.realloc(ends, size),
+                                          ArrayUtil.realloc(subtreeSizes, size),
+                                          size);
+        }
+
+        private int enter(@NotNull ASTNode node, int depth) {
+            if (node instanceof LeafASTNode) {
+                return depth;
+            }
+
+            if (size == starts.length) {
+                final int capacity = size * 2;
+                types = Arrays.copyOf(types, capacity);
+                starts = ArrayUtil.realloc(starts, capacity);
+                ends = ArrayUtil.realloc(ends, capacity);
+                subtreeSizes = ArrayUtil.realloc(subtreeSizes, capacity);
+            }
+            types[size] = MarkdownElementType.platformType(node.getType()).getIndex();
+            starts[size] = node.getStartOffset();
+            ends[size] = node.getEndOffset();
+
+            if (depth == nodes.length) {
+                final int capacity = depth * 2;
+                nodes = Arrays.copyOf(nodes, capacity);
+                nextChildren = ArrayUtil.realloc(nextChildren, capacity);
+                indices = ArrayUtil.realloc(indices, capacity);
+            }
+            nodes[depth] = node;
+            nextChildren[depth] = 0;
+            indices[depth] = size++;
+            return depth + 1;
+        }
+    }
+}
@@ -23,15 +23,28 @@ package net.nicoulaj.idea.markdown.lang.parser;
 import com.intellij.lang.ASTNode;
 import com.intellij.lang.PsiBuilder;
 import com.intellij.lang.PsiParser;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.impl.source.resolve.FileContextUtil;
 import com.intellij.psi.tree.IElementType;
-import net.nicoulaj.idea.markdown.lang.MarkdownElementType;
-import org.intellij.markdown.MarkdownElementTypes;
-import org.intellij.markdown.ast.LeafASTNode;
-import org.intellij.markdown.ast.visitors.RecursiveVisitor;
+import com.intellij.psi.tree.TokenSet;
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.text.CharSequenceSubSequence;
+import net.nicoulaj.idea.markdown.lang.MarkdownElementTypes;
+import net.nicoulaj.idea.markdown.lang.MarkdownReparseableElementType;
+import net.nicoulaj.idea.markdown.settings.MarkdownGlobalSettings;
 import org.intellij.markdown.parser.MarkdownParser;
+import org.intellij.markdown.parser.TokensCache;
 import org.intellij.markdown.parser.dialects.commonmark.CommonMarkMarkerProcessor;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Arrays;
+import java.util.Collections;
+
 /**
  * Parser implementation for Markdown.
  *
@@ -40,9 +53,27 @@ import org.jetbrains.annotations.NotNull;
  */
 public class MarkdownParserAdapter implements PsiParser {
 
+    /**
+     * The intellij-markdown parser, shared by all parses.
+     * <p/>
+     * The parser and its marker processor factory hold no state of their own: each parse creates its own production
+     * holder and marker processor, so a single instance can be used from any thread.
+     */
+    private static final MarkdownParser PARSER = new MarkdownParser(new CommonMarkMarkerProcessor.object.Factory());
+
     /**
      * Parse the contents of the specified PSI builder and returns an AST tree with the
      * specified type of root element.
+     * <p/>
+     * When the root is a {@link MarkdownReparseableElementType}, the builder holds the text of a single block being
+     * reparsed and the children of this block are built directly under the root. If the text does not parse alone as a
+     * single block of the same type, which {@link MarkdownReparseableElementType#isParsable} rules out for reparses but
+     * may happen when a lazy paragraph is expanded, its tokens are left flat under the root.
+     * <p/>
+     * Large documents are parsed with {@link ParallelMarkdownParser}. Documents above
+     * {@link MarkdownGlobalSettings#isLargeFile(int)} only get PSI elements for their block structure, including the
+     * blocks reparsed on their own: this bounds the size of their PSI, not their parsing time, as intellij-markdown
+     * always parses inline content along with the blocks. The AST of saved files is shared between identical files.
      *
      * @param root    the type of the root element in the AST tree.
      * @param builder the builder which is used to retrieve the original file tokens and build the AST tree.
@@ -53,41 +84,235 @@ public class MarkdownParserAdapter implements PsiParser {
 
         PsiBuilder.Marker rootMarker = builder.mark();
 
-        final PsiBuilderTokensCache tokensCache = new PsiBuilderTokensCache(builder);
-        final org.intellij.markdown.ast.ASTNode parsedTree = new MarkdownParser(new CommonMarkMarkerProcessor.object.Factory())
-                .parse(MarkdownElementTypes.MARKDOWN_FILE, tokensCache);
+        final MarkdownPackedTree tree;
+        final boolean blockOnly;
+        if (root instanceof MarkdownReparseableElementType) {
+            final PsiFile file = builder.getUserDataUnprotected(FileContextUtil.CONTAINING_FILE_KEY);
+            blockOnly = file != null && MarkdownGlobalSettings.getInstance().isLargeFile(file.getTextLength());
+            if (blockOnly && !PsiBuilderFiller.CONTAINER_TYPES.contains(root)) {
+                // The content of a leaf block of a large file is left flat, as in the rest of the file.
+                tree = MarkdownPackedTree.pack(Collections.<org.intellij.markdown.ast.ASTNode>emptyList());
+            } else {
+                final org.intellij.markdown.ast.ASTNode parsedTree = buildMarkdownTree(builder, false);
+                final org.intellij.markdown.ast.ASTNode block = ((MarkdownReparseableElementType) root)
+                        .findBlock(parsedTree, builder.getOriginalText().length());
+                // Text which does not parse alone as a single block of the same type would nest a mismatched
+                // structure in the block: its tokens are then left flat.
+                tree = block != null
+                       ? MarkdownPackedTree.pack(block.getChildren())
+                       : MarkdownPackedTree.pack(Collections.<org.intellij.markdown.ast.ASTNode>emptyList());
+            }
+        } else {
+            tree = buildFileTree(builder);
+            blockOnly = MarkdownGlobalSettings.getInstance().isLargeFile(builder.getOriginalText().length());
+        }
 
         assert builder.getCurrentOffset() == 0;
-        new PsiBuilderFillingVisitor(builder).visitNode(parsedTree);
+        fill(builder, tree, blockOnly);
+        while (!builder.eof()) {
+            builder.advanceLexer();
+        }
 
         rootMarker.done(root);
 
         return builder.getTreeBuilt();
     }
 
-    private static class PsiBuilderFillingVisitor extends RecursiveVisitor {
+    /**
+     * Build the packed Markdown AST of a whole document, or reuse the one of an identical document from
+     * {@link MarkdownTreeCache}.
+     * <p/>
+     * The cache is only used for the saved content of files, which is what is parsed when files are opened or indexed
+     * and where identical documents are likely. The text of a file being edited is almost never seen again, so it is
+     * neither hashed nor cached.
+     * <p/>
+     * A newly built AST is published to the {@link MarkdownDocumentTreeService} of the file, then packed, so its
+     * object graph can be collected before the PSI is built unless a consumer of the service holds it.
+     */
+    @NotNull
+    private static MarkdownPackedTree buildFileTree(@NotNull PsiBuilder builder) {
+        final PsiFile file = builder.getUserDataUnprotected(FileContextUtil.CONTAINING_FILE_KEY);
+        final VirtualFile virtualFile = file != null ? file.getViewProvider().getVirtualFile() : null;
+
+        final MarkdownTreeCache treeCache = MarkdownTreeCache.getInstance();
+        final String key = virtualFile != null && !FileDocumentManager.getInstance().isFileModified(virtualFile)
+                           ? MarkdownTreeCache.computeKey(builder.getOriginalText())
+                           : null;
+
+        MarkdownPackedTree tree = key != null ? treeCache.get(key) : null;
+        if (tree == null) {
+            final org.intellij.markdown.ast.ASTNode markdownTree = buildMarkdownTree(builder, true);
+            final Document document =
+                    virtualFile != null ? FileDocumentManager.getInstance().getCachedDocument(virtualFile) : null;
+            if (document != null) {
+                MarkdownDocumentTreeService.getInstance(file.getProject())
+                        .publish(document, builder.getOriginalText(), markdownTree);
+            }
+
+            tree = MarkdownPackedTree.pack(markdownTree);
+            if (key != null) {
+                treeCache.put(key, tree);
+            }
+        }
+        return tree;
+    }
+
+    @NotNull
+    private static org.intellij.markdown.ast.ASTNode buildMarkdownTree(@NotNull PsiBuilder builder, boolean parallel) {
+        final PsiBuilderTokensCache tokensCache = new PsiBuilderTokensCache(builder);
+        try {
+            return parallel ? ParallelMarkdownParser.buildMarkdownTree(tokensCache) : buildMarkdownTree(tokensCache);
+        } finally {
+            tokensCache.release();
+        }
+    }
+
+    /**
+     * Build the Markdown AST of the specified text, outside of any PSI builder.
+     *
+     * @param text the Markdown text.
+     * @return the root of the intellij-markdown AST.
+     */
+    @NotNull
+    public static org.intellij.markdown.ast.ASTNode buildMarkdownTree(@NotNull CharSequence text) {
+        return buildMarkdownTree(new LexerTokensCache(text));
+    }
+
+    /**
+     * Build the Markdown AST of the specified tokens, sequentially.
+     *
+     * @param tokensCache the tokens of the text.
+     * @return the root of the intellij-markdown AST.
+     */
+    @NotNull
+    static org.intellij.markdown.ast.ASTNode buildMarkdownTree(@NotNull TokensCache tokensCache) {
+        if (ApplicationManager.getApplication() != null) {
+            ProgressManager.checkCanceled();
+        }
+        return PARSER.parse(org.intellij.markdown.MarkdownElementTypes.MARKDOWN_FILE, tokensCache);
+    }
+
+    /**
+     * Replay a packed Markdown AST into a PSI builder, with {@link PsiBuilderFiller}.
+     *
+     * @param builder   the builder, positioned at the start of the tree.
+     * @param tree      the packed AST.
+     * @param blockOnly whether only the block structure gets PSI elements.
+     */
+    public static void fill(@NotNull PsiBuilder builder, @NotNull MarkdownPackedTree tree, boolean blockOnly) {
+        new PsiBuilderFiller(builder, blockOnly).fill(tree);
+    }
+
+    /**
+     * Replays a {@link MarkdownPackedTree} into the {@link PsiBuilder}.
+     * <p/>
+     * The tree is walked in preorder, with an explicit stack of the open nodes, so arbitrarily deep trees can be
+     * replayed without allocating anything per node.
+     * <p/>
+     * Paragraphs which can be parsed on their own are collapsed into lazy nodes: their inline content is only built
+     * when the PSI of the paragraph is first inspected.
+     * <p/>
+     * In block only mode, the filler does not descend in blocks which are not {@link #CONTAINER_TYPES}, so no PSI
+     * element is built for inline content.
+     */
+    private static class PsiBuilderFiller {
+        private static final TokenSet CONTAINER_TYPES = TokenSet.create(MarkdownElementTypes.MARKDOWN_FILE,
+                                                                        MarkdownElementTypes.UNORDERED_LIST,
+                                                                        MarkdownElementTypes.ORDERED_LIST,
+                                                                        MarkdownElementTypes.LIST_ITEM,
+                                                                        MarkdownElementTypes.BLOCK_QUOTE);
+
+        private static final int INITIAL_DEPTH = 32;
+
         @NotNull private final PsiBuilder builder;
+        private final boolean blockOnly;
+        @NotNull private final CancellationCheckpoint checkpoint = new CancellationCheckpoint();
 
-        public PsiBuilderFillingVisitor(@NotNull PsiBuilder builder) {
+        /** The marker of each open node, from the outermost to the innermost. */
+        @NotNull private PsiBuilder.Marker[] markers = new PsiBuilder.Marker[INITIAL_DEPTH];
+        /** The type of each open node. */
+        @NotNull private IElementType[] types = new IElementType[INITIAL_DEPTH];
+        /** The end offset of each open node. */
+        @NotNull private int[] ends = new int[INITIAL_DEPTH];
+        /** The preorder index following the subtree of each open node. */
+        @NotNull private int[] subtreeEnds = new int[INITIAL_DEPTH];
+
+        public PsiBuilderFiller(@NotNull PsiBuilder builder, boolean blockOnly) {
             this.builder = builder;
+            this.blockOnly = blockOnly;
         }
 
-        @Override public void visitNode(@NotNull org.intellij.markdown.ast.ASTNode node) {
-            if (node instanceof LeafASTNode) {
-                return;
+        public void fill(@NotNull MarkdownPackedTree tree) {
+            int depth = 0;
+            int index = 0;
+            while (index < tree.size()) {
+                checkpoint.check();
+                while (depth > 0 && index >= subtreeEnds[depth - 1]) {
+                    depth = close(depth);
+                }
+
+                ensureBuilderInPosition(tree.getStartOffset(index));
+                final PsiBuilder.Marker marker = builder.mark();
+                final IElementType type = tree.getType(index);
+                final int end = tree.getEndOffset(index);
+                final int subtreeEnd = index + tree.getSubtreeSize(index);
+
+                if (isLazy(type, tree.getStartOffset(index), end)) {
+                    ensureBuilderInPosition(end);
+                    marker.collapse(type);
+                    index = subtreeEnd;
+                } else if (blockOnly && !CONTAINER_TYPES.contains(type)) {
+                    ensureBuilderInPosition(end);
+                    marker.done(type);
+                    index = subtreeEnd;
+                } else {
+                    if (depth == markers.length) {
+                        final int capacity = depth * 2;
+                        markers = Arrays.copyOf(markers, capacity);
+                        types = Arrays.copyOf(types, capacity);
+                        ends = ArrayUtil.realloc(ends, capacity);
+                        subtreeEnds = ArrayUtil.realloc(subtreeEnds, capacity);
+                    }
+                    markers[depth] = marker;
+                    types[depth] = type;
+                    ends[depth] = end;
+                    subtreeEnds[depth] = subtreeEnd;
+                    depth++;
+                    index++;
+                }
             }
 
-            ensureBuilderInPosition(node.getStartOffset());
-            final PsiBuilder.Marker marker = builder.mark();
+            while (depth > 0) {
+                depth = close(depth);
+            }
+        }
 
-            super.visitNode(node);
+        /**
+         * Finish the PSI element of the innermost open node.
+         *
+         * @param depth the number of open nodes.
+         * @return the number of open nodes after the node is closed.
+         */
+        private int close(int depth) {
+            final int top = depth - 1;
+            ensureBuilderInPosition(ends[top]);
+            markers[top].done(types[top]);
+            markers[top] = null;
+            types[top] = null;
+            return top;
+        }
 
-            ensureBuilderInPosition(node.getEndOffset());
-            marker.done(MarkdownElementType.platformType(node.getType()));
+        private boolean isLazy(@NotNull IElementType type, int start, int end) {
+            return !blockOnly
+                   && type == MarkdownElementTypes.PARAGRAPH
+                   && type instanceof MarkdownReparseableElementType
+                   && ((MarkdownReparseableElementType) type).isSelfContained(
+                    new CharSequenceSubSequence(builder.getOriginalText(), start, end));
         }
 
         private void ensureBuilderInPosition(int position) {
             while (builder.getCurrentOffset() < position) {
+                checkpoint.check();
                 builder.advanceLexer();
             }
 
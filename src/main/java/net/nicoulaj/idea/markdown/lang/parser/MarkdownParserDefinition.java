@@ -52,6 +52,20 @@ public class MarkdownParserDefinition implements ParserDefinition {
      */
     protected static final MarkdownFileElementType FILE_ELEMENT_TYPE = new MarkdownFileElementType();
 
+    /**
+     * The token types skipped as whitespace by the PSI builder.
+     *
+     * @see #getWhitespaceTokens()
+     */
+    public static final TokenSet WHITESPACE_TOKENS = TokenSet.EMPTY;
+
+    /**
+     * The token types skipped as comments by the PSI builder.
+     *
+     * @see #getCommentTokens()
+     */
+    public static final TokenSet COMMENT_TOKENS = TokenSet.EMPTY;
+
     /**
      * Get the lexer for lexing files in the specified project.
      *
@@ -85,21 +99,21 @@ public class MarkdownParserDefinition implements ParserDefinition {
     /**
      * Get the set of token types which are treated as whitespace by the PSI builder.
      *
-     * @return {@link TokenSet#EMPTY}
+     * @return {@link #WHITESPACE_TOKENS}
      */
     @NotNull
     public TokenSet getWhitespaceTokens() {
-        return TokenSet.create();
+        return WHITESPACE_TOKENS;
     }
 
     /**
      * Get the set of token types which are treated as comments by the PSI builder.
      *
-     * @return {@link TokenSet#EMPTY}
+     * @return {@link #COMMENT_TOKENS}
      */
     @NotNull
     public TokenSet getCommentTokens() {
-        return TokenSet.EMPTY;
+        return COMMENT_TOKENS;
     }
 
     /**
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.lang.parser;
+
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.util.text.StringUtil;
+import org.intellij.markdown.parser.dialects.commonmark.CommonMarkMarkerProcessor;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.SoftReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of packed Markdown ASTs, keyed by the hash of the document content and the parser options.
+ * <p/>
+ * The AST only holds offsets in the text, so identical documents (vendored READMEs, licenses, generated
+ * documentation...) can share the same tree. Trees are softly referenced and the least recently used ones are evicted
+ * above {@link #MAX_ENTRIES}.
+ * <p/>
+ * Only the saved content of files is cached, as it is parsed when files are opened or indexed: caching each edit of a
+ * document would fill the cache with trees which are never reused.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownTreeCache {
+
+    /** The maximum number of trees kept in the cache. */
+    public static final int MAX_ENTRIES = 64;
+
+    /** Identifies the options the trees are built with, so trees built with other options are never reused. */
+    @NonNls
+    private static final String PARSER_OPTIONS = CommonMarkMarkerProcessor.class.getName();
+
+    /** The number of characters hashed at once. */
+    private static final int HASH_CHUNK_LENGTH = 4096;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** The cached trees, in access order. */
+    private final Map<String, SoftReference<MarkdownPackedTree>> trees =
+            new LinkedHashMap<String, SoftReference<MarkdownPackedTree>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SoftReference<MarkdownPackedTree>> eldest) {
+                    if (size() > MAX_ENTRIES) {
+                        evictions.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * Get the instance of this service.
+     *
+     * @return the unique {@link MarkdownTreeCache} instance.
+     */
+    public static MarkdownTreeCache getInstance() {
+        return ServiceManager.getService(MarkdownTreeCache.class);
+    }
+
+    /**
+     * Compute the cache key of the specified document content.
+     *
+     * @param text the document content.
+     * @return the key identifying the content and the parser options.
+     */
+    @NotNull
+    public static String computeKey(@NotNull CharSequence text) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        final byte[] chunk = new byte[HASH_CHUNK_LENGTH * 2];
+        for (int start = 0; start < text.length(); start += HASH_CHUNK_LENGTH) {
+            final int end = Math.min(start + HASH_CHUNK_LENGTH, text.length());
+            int length = 0;
+            for (int i = start; i < end; i++) {
+                final char c = text.charAt(i);
+                chunk[length++] = (byte) (c >> 8);
+                chunk[length++] = (byte) c;
+            }
+            digest.update(chunk, 0, length);
+        }
+
+        return StringUtil.toHexString(digest.digest()) + ':' + text.length() + ':' + PARSER_OPTIONS;
+    }
+
+    /**
+     * Get the tree cached for the specified key.
+     *
+     * @param key the key computed with {@link #computeKey(CharSequence)}.
+     * @return the cached tree, or {@code null} if there is none.
+     */
+    @Nullable
+    public synchronized MarkdownPackedTree get(@NotNull String key) {
+        final SoftReference<MarkdownPackedTree> reference = trees.get(key);
+        final MarkdownPackedTree tree = reference != null ? reference.get() : null;
+        if (tree != null) {
+            hits.incrementAndGet();
+            return tree;
+        }
+
+        if (reference != null) {
+            trees.remove(key);
+            evictions.incrementAndGet();
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Cache the tree built for the specified key.
+     *
+     * @param key  the key computed with {@link #computeKey(CharSequence)}.
+     * @param tree the tree.
+     */
+    public synchronized void put(@NotNull String key, @NotNull MarkdownPackedTree tree) {
+        trees.put(key, new SoftReference<MarkdownPackedTree>(tree));
+    }
+
+    /** Remove all the cached trees. */
+    public synchronized void clear() {
+        trees.clear();
+    }
+
+    /**
+     * Get the number of lookups which found a tree.
+     *
+     * @return the hit count.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups which found no tree.
+     *
+     * @return the miss count.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of trees removed from the cache, either because it was full or because they were collected.
+     *
+     * @return the eviction count.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override public synchronized String toString() {
+        return "MarkdownTreeCache{size=" + trees.size() + ", hits=" + hits + ", misses=" + misses
+               + ", evictions=" + evictions + '}';
+    }
+}
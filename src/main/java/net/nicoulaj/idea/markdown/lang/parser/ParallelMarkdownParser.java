@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.lang.parser;
+
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.util.Processor;
+import org.intellij.markdown.IElementType;
+import org.intellij.markdown.MarkdownElementTypes;
+import org.intellij.markdown.MarkdownTokenTypes;
+import org.intellij.markdown.ast.ASTNode;
+import org.intellij.markdown.ast.CompositeASTNode;
+import org.intellij.markdown.parser.TokensCache;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds the Markdown AST of large documents by parsing their top-level blocks concurrently.
+ * <p/>
+ * The tokens are split at block boundaries which no block can span: non indented lines following a blank line,
+ * outside of code fences, HTML blocks and lists. Each segment is parsed on its own and the children of the segment
+ * trees are stitched together under a single {@link MarkdownElementTypes#MARKDOWN_FILE} node, which gives the same tree
+ * as a sequential parse.
+ * <p/>
+ * Segments are only pure token and AST work: their tokens are copied from the builder by the calling thread when the
+ * document is split, and parsing them takes no read action. The pooled workers are still run by
+ * {@link JobLauncher} in a read action when the caller holds read access, so under a write action, as when a document
+ * is committed on the EDT, they would wait for the EDT which waits for them: documents are then parsed sequentially.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class ParallelMarkdownParser {
+
+    /** Documents shorter than this number of characters are parsed sequentially. */
+    public static final int PARALLEL_PARSING_THRESHOLD = 256 * 1024;
+
+    /** The minimum number of characters of a segment. */
+    public static final int MIN_SEGMENT_LENGTH = 32 * 1024;
+
+    private ParallelMarkdownParser() {
+    }
+
+    /**
+     * Build the Markdown AST of the specified tokens, in parallel if the document is large enough and the calling
+     * thread does not hold write access.
+     *
+     * @param tokensCache the tokens of the whole document.
+     * @return the root of the intellij-markdown AST.
+     */
+    @NotNull
+    public static ASTNode buildMarkdownTree(@NotNull TokensCache tokensCache) {
+        final int length = tokensCache.getOriginalText().length();
+        if (length < PARALLEL_PARSING_THRESHOLD
+            || ApplicationManager.getApplication() == null
+            || ApplicationManager.getApplication().isWriteAccessAllowed()) {
+            return MarkdownParserAdapter.buildMarkdownTree(tokensCache);
+        }
+
+        final int segmentLength = Math.max(MIN_SEGMENT_LENGTH,
+                                           length / (4 * Runtime.getRuntime().availableProcessors()));
+        return buildSegmentedTree(tokensCache, segmentLength);
+    }
+
+    /**
+     * Build the Markdown AST of the specified tokens by parsing segments of about the specified length on their own.
+     *
+     * @param tokensCache   the tokens of the whole document.
+     * @param segmentLength the length in characters from which a segment is ended at the next block boundary.
+     * @return the root of the intellij-markdown AST.
+     */
+    @NotNull
+    static ASTNode buildSegmentedTree(@NotNull TokensCache tokensCache, int segmentLength) {
+        final List<TokensCacheSegment> segments = split(tokensCache, segmentLength);
+        if (segments.size() < 2) {
+            return MarkdownParserAdapter.buildMarkdownTree(tokensCache);
+        }
+
+        final ASTNode[] trees = new ASTNode[segments.size()];
+        final List<Integer> indices = new ArrayList<Integer>(segments.size());
+        for (int i = 0; i < segments.size(); i++) {
+            indices.add(i);
+        }
+
+        final Processor<Integer> parseSegment = new Processor<Integer>() {
+            public boolean process(Integer index) {
+                trees[index] = MarkdownParserAdapter.buildMarkdownTree(segments.get(index));
+                return true;
+            }
+        };
+
+        if (ApplicationManager.getApplication() == null
+            || !JobLauncher.getInstance().invokeConcurrentlyUnderProgress(
+                indices, ProgressManager.getInstance().getProgressIndicator(), false, parseSegment)) {
+            for (Integer index : indices) {
+                if (trees[index] == null) {
+                    parseSegment.process(index);
+                }
+            }
+        }
+
+        return stitch(trees);
+    }
+
+    /**
+     * Split the specified tokens at top-level block boundaries.
+     *
+     * @param tokensCache   the tokens of the whole document.
+     * @param segmentLength the length in characters from which a segment is ended at the next block boundary.
+     * @return the segments, covering all the tokens in order.
+     */
+    @NotNull
+    static List<TokensCacheSegment> split(@NotNull TokensCache tokensCache, int segmentLength) {
+        final List<TokensCache.TokenInfo> tokens = tokensCache.getCachedTokens();
+        final CharSequence text = tokensCache.getOriginalText();
+        if (tokens.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<TokensCacheSegment> segments = new ArrayList<TokensCacheSegment>();
+        int rawFrom = 0;
+        int normFrom = 0;
+        int normIndex = 0;
+        int segmentStart = tokens.get(0).getTokenStart();
+        boolean inFence = false;
+        IElementType lastNonBlankType = null;
+
+        for (int i = 0; i < tokens.size(); i++) {
+            final TokensCache.TokenInfo token = tokens.get(i);
+            final IElementType type = token.getType();
+
+            if (i > rawFrom
+                && !inFence
+                && token.getTokenStart() - segmentStart >= segmentLength
+                && lastNonBlankType != MarkdownTokenTypes.HTML_BLOCK
+                && isBoundary(type)
+                && isBlockStart(text, token.getTokenStart())) {
+                segments.add(new TokensCacheSegment(tokensCache, rawFrom, i, normFrom, normIndex));
+                rawFrom = i;
+                normFrom = normIndex;
+                segmentStart = token.getTokenStart();
+            }
+
+            if (type == MarkdownTokenTypes.CODE_FENCE_START) {
+                inFence = true;
+            } else if (type == MarkdownTokenTypes.CODE_FENCE_END) {
+                inFence = false;
+            }
+            if (type != MarkdownTokenTypes.EOL && type != MarkdownTokenTypes.WHITE_SPACE) {
+                lastNonBlankType = type;
+            }
+            if (token.getNormIndex() >= 0) {
+                normIndex++;
+            }
+        }
+
+        segments.add(new TokensCacheSegment(tokensCache, rawFrom, tokens.size(), normFrom, normIndex));
+        return segments;
+    }
+
+    /**
+     * Check whether a segment can start with a token of the specified type.
+     * <p/>
+     * List items and HTML blocks continue over blank lines, so they never start a segment.
+     */
+    private static boolean isBoundary(IElementType type) {
+        return type != null
+               && type != MarkdownTokenTypes.LIST_BULLET
+               && type != MarkdownTokenTypes.LIST_NUMBER
+               && type != MarkdownTokenTypes.HTML_BLOCK
+               && type != MarkdownTokenTypes.EOL
+               && type != MarkdownTokenTypes.WHITE_SPACE;
+    }
+
+    /**
+     * Check whether the specified offset is the first non-blank character of a non indented line which follows a
+     * blank line.
+     */
+    private static boolean isBlockStart(@NotNull CharSequence text, int offset) {
+        if (offset <= 0 || offset >= text.length() || text.charAt(offset - 1) != '\n') {
+            return false;
+        }
+
+        if (isBlank(text.charAt(offset))) {
+            return false;
+        }
+
+        for (int i = offset - 2; i >= 0; i--) {
+            final char c = text.charAt(i);
+            if (c == '\n') {
+                return true;
+            }
+            if (!isBlank(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    @NotNull
+    static ASTNode stitch(@NotNull ASTNode[] trees) {
+        final List<ASTNode> children = new ArrayList<ASTNode>();
+        for (ASTNode tree : trees) {
+            children.addAll(tree.getChildren());
+        }
+        return new CompositeASTNode(MarkdownElementTypes.MARKDOWN_FILE, children);
+    }
+}
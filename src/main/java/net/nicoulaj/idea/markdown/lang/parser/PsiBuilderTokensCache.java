@@ -21,56 +21,145 @@
 package net.nicoulaj.idea.markdown.lang.parser;
 
 import com.intellij.lang.PsiBuilder;
-import com.intellij.util.containers.ContainerUtil;
+import com.intellij.util.ArrayUtil;
 import net.nicoulaj.idea.markdown.lang.MarkdownElementType;
+import org.intellij.markdown.IElementType;
 import org.intellij.markdown.parser.TokensCache;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.RandomAccess;
 
+/**
+ * {@link TokensCache} filled from the tokens of a {@link PsiBuilder}.
+ * <p/>
+ * Tokens are stored in parallel arrays rather than as one {@link TokenInfo} per token. The arrays are reused by the
+ * next parse on the same thread once {@link #release()} has been called, unless they grew above
+ * {@link #MAX_RETAINED_TOKENS}.
+ * <p/>
+ * The parser only reads tokens as immutable {@link TokenInfo} objects, so they cannot be recycled. They are built from
+ * the arrays when read and kept in a small direct-mapped cache indexed by raw token index: the parser reads tokens in
+ * passes over nearby ranges, so most reads are served from the cache, while the number of live {@link TokenInfo}s
+ * stays bounded by {@link #INFO_CACHE_SIZE} whatever the size of the document.
+ */
 public class PsiBuilderTokensCache extends TokensCache {
+
+    /** Buffers larger than this number of tokens (about 24 bytes each) are not kept for reuse after a parse. */
+    private static final int MAX_RETAINED_TOKENS = 1 << 14;
+
+    /** The number of entries of the {@link TokenInfo} cache, a power of two. */
+    private static final int INFO_CACHE_SIZE = 1 << 10;
+
+    private static final ThreadLocal<TokenBuffers> THREAD_BUFFERS = new ThreadLocal<TokenBuffers>() {
+        @Override protected TokenBuffers initialValue() {
+            return new TokenBuffers();
+        }
+    };
+
     @NotNull
-    private final List<TokenInfo> cachedTokens;
+    private final List<TokenInfo> cachedTokens = new CachedTokensView();
     @NotNull
-    private final List<TokenInfo> filteredTokens;
+    private final List<TokenInfo> filteredTokens = new FilteredTokensView();
     @NotNull
     private final PsiBuilder builder;
+    @NotNull
+    private TokenBuffers buffers;
+    @NotNull
+    private final CancellationCheckpoint checkpoint = new CancellationCheckpoint();
+
+    private int rawCount;
+
+    private int filteredCount;
 
     public PsiBuilderTokensCache(@NotNull PsiBuilder builder) {
         this.builder = builder;
-        cachedTokens = ContainerUtil.newArrayList();
-        filteredTokens = ContainerUtil.newArrayList();
+        buffers = acquireBuffers();
 
         cacheTokens();
         verify();
     }
 
+    /**
+     * Collect the raw and filtered tokens in a single pass over the builder lexemes, without moving the builder.
+     * <p/>
+     * The parser has no cancellation checks of its own, so reading tokens from the views also goes through the
+     * {@link #checkpoint}.
+     */
     private void cacheTokens() {
-        PsiBuilder.Marker startMarker = builder.mark();
-
-        for (int i = 0; builder.rawLookup(i) != null; ++i) {
-            cachedTokens.add(new TokenInfo(MarkdownElementType.markdownType(builder.rawLookup(i)),
-                                           builder.rawTokenTypeStart(i),
-                                           builder.rawTokenTypeStart(i + 1),
-                                           i,
-                                           -1));
+        int tokenStart = builder.rawTokenTypeStart(0);
+        for (int i = 0; ; ++i) {
+            final com.intellij.psi.tree.IElementType type = builder.rawLookup(i);
+            if (type == null) {
+                break;
+            }
+            checkpoint.check();
+            final int tokenEnd = builder.rawTokenTypeStart(i + 1);
+
+            buffers.ensureCapacity(i + 1);
+            buffers.types[i] = MarkdownElementType.markdownType(type);
+            buffers.starts[i] = tokenStart;
+            buffers.ends[i] = tokenEnd;
+            if (isSkippedByBuilder(type)) {
+                buffers.normIndices[i] = -1;
+            } else {
+                buffers.normIndices[i] = filteredCount;
+                buffers.rawIndices[filteredCount] = i;
+                filteredCount++;
+            }
+            rawCount++;
+
+            tokenStart = tokenEnd;
         }
+    }
+
+    private static boolean isSkippedByBuilder(@NotNull com.intellij.psi.tree.IElementType type) {
+        return MarkdownParserDefinition.WHITESPACE_TOKENS.contains(type) || MarkdownParserDefinition.COMMENT_TOKENS.contains(type);
+    }
 
-        int listIndex = 0;
-        int builderIndex = 0;
-        while (builder.getTokenType() != null) {
-            while (builder.getCurrentOffset() > cachedTokens.get(listIndex).getTokenStart()) {
-                listIndex++;
+    /**
+     * Give the token buffers back for reuse by the next parse on this thread.
+     * <p/>
+     * This cache must not be used afterwards.
+     */
+    public void release() {
+        if (THREAD_BUFFERS.get() == buffers) {
+            if (buffers.capacity() > MAX_RETAINED_TOKENS) {
+                THREAD_BUFFERS.remove();
+            } else {
+                Arrays.fill(buffers.infos, null);
+                buffers.inUse = false;
             }
-            assert  builder.getCurrentOffset() == cachedTokens.get(listIndex).getTokenStart();
-            cachedTokens.get(listIndex).setNormIndex(builderIndex);
-            filteredTokens.add(cachedTokens.get(listIndex));
+        }
+        buffers = new TokenBuffers();
+        rawCount = 0;
+        filteredCount = 0;
+    }
 
-            builder.advanceLexer();
-            builderIndex++;
+    @NotNull
+    private static TokenBuffers acquireBuffers() {
+        final TokenBuffers threadBuffers = THREAD_BUFFERS.get();
+        if (threadBuffers.inUse) {
+            return new TokenBuffers();
         }
+        threadBuffers.inUse = true;
+        return threadBuffers;
+    }
 
-        startMarker.rollbackTo();
+    @NotNull
+    private TokenInfo getTokenInfo(int rawIndex) {
+        final int slot = rawIndex & (INFO_CACHE_SIZE - 1);
+        TokenInfo info = buffers.infos[slot];
+        if (info == null || info.getRawIndex() != rawIndex) {
+            info = new TokenInfo(buffers.types[rawIndex],
+                                 buffers.starts[rawIndex],
+                                 buffers.ends[rawIndex],
+                                 rawIndex,
+                                 buffers.normIndices[rawIndex]);
+            buffers.infos[slot] = info;
+        }
+        return info;
     }
 
     @NotNull @Override public List<TokenInfo> getCachedTokens() {
@@ -84,4 +173,71 @@ public class PsiBuilderTokensCache extends TokensCache {
     @NotNull @Override public CharSequence getOriginalText() {
         return builder.getOriginalText();
     }
+
+    private class CachedTokensView extends AbstractList<TokenInfo> implements RandomAccess {
+        @Override public TokenInfo get(int index) {
+            if (index < 0 || index >= rawCount) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + rawCount);
+            }
+            checkpoint.check();
+            return getTokenInfo(index);
+        }
+
+        @Override public int size() {
+            return rawCount;
+        }
+    }
+
+    private class FilteredTokensView extends AbstractList<TokenInfo> implements RandomAccess {
+        @Override public TokenInfo get(int index) {
+            if (index < 0 || index >= filteredCount) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + filteredCount);
+            }
+            checkpoint.check();
+            return getTokenInfo(buffers.rawIndices[index]);
+        }
+
+        @Override public int size() {
+            return filteredCount;
+        }
+    }
+
+    /** Parallel arrays holding the tokens of one parse. */
+    private static class TokenBuffers {
+        @NotNull
+        private IElementType[] types = new IElementType[0];
+        /** The {@link TokenInfo}s last read, at their raw index modulo {@link #INFO_CACHE_SIZE}. */
+        @NotNull
+        private final TokenInfo[] infos = new TokenInfo[INFO_CACHE_SIZE];
+        @NotNull
+        private int[] starts = ArrayUtil.EMPTY_INT_ARRAY;
+        @NotNull
+        private int[] ends = ArrayUtil.EMPTY_INT_ARRAY;
+        /** Filtered index of each raw token, or -1 if the token is skipped by the builder. */
+        @NotNull
+        private int[] normIndices = ArrayUtil.EMPTY_INT_ARRAY;
+        /** Raw index of each filtered token. */
+        @NotNull
+        private int[] rawIndices = ArrayUtil.EMPTY_INT_ARRAY;
+
+        private boolean inUse;
+
+        private int capacity() {
+            return starts.length;
+        }
+
+        private void ensureCapacity(int size) {
+            if (size <= starts.length) {
+                return;
+            }
+            final int capacity = Math.max(size, starts.length + (starts.length >> 1) + 16);
+            final IElementType[] newTypes = new IElementType[capacity];
+            System.arraycopy(types, 0, newTypes, 0, types.length);
+            types = newTypes;
+            starts = ArrayUtil.realloc(starts, capacity);
+            ends = ArrayUtil.realloc(ends, capacity);
+            normIndices = ArrayUtil.realloc(normIndices, capacity);
+            rawIndices = ArrayUtil.realloc(rawIndices, capacity);
+        }
+    }
 }
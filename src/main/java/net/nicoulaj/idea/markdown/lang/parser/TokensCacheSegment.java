@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.lang.parser;
+
+import org.intellij.markdown.parser.TokensCache;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * View of a contiguous range of the tokens of another {@link TokensCache}.
+ * <p/>
+ * Token indices are relative to the range while token offsets stay relative to the whole text, so trees built from
+ * consecutive segments can be stitched together as they are.
+ * <p/>
+ * The tokens of the range are read from the base cache when the segment is built, on the thread splitting the
+ * document. Segments are then parsed concurrently without reading the base cache, each with its own
+ * {@link CancellationCheckpoint}.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @see ParallelMarkdownParser
+ * @since 0.10
+ */
+public class TokensCacheSegment extends TokensCache {
+    @NotNull
+    private final TokensCache base;
+
+    /** The tokens of the segment, with indices relative to the segment. */
+    @NotNull
+    private final TokenInfo[] rawTokens;
+
+    /** The filtered tokens of the segment, shared with {@link #rawTokens}. */
+    @NotNull
+    private final TokenInfo[] filteredTokensArray;
+
+    @NotNull
+    private final CancellationCheckpoint checkpoint = new CancellationCheckpoint();
+
+    @NotNull
+    private final List<TokenInfo> cachedTokens = new CachedTokensView();
+    @NotNull
+    private final List<TokenInfo> filteredTokens = new FilteredTokensView();
+
+    /**
+     * Build a new instance of {@link TokensCacheSegment}.
+     *
+     * @param base     the tokens cache of the whole text.
+     * @param rawFrom  the raw index of the first token of the segment.
+     * @param rawTo    the raw index following the last token of the segment.
+     * @param normFrom the filtered index of the first filtered token of the segment.
+     * @param normTo   the filtered index following the last filtered token of the segment.
+     */
+    public TokensCacheSegment(@NotNull TokensCache base, int rawFrom, int rawTo, int normFrom, int normTo) {
+        this.base = base;
+
+        final List<TokenInfo> baseTokens = base.getCachedTokens();
+        rawTokens = new TokenInfo[rawTo - rawFrom];
+        filteredTokensArray = new TokenInfo[normTo - normFrom];
+        for (int i = rawFrom; i < rawTo; i++) {
+            final TokenInfo info = baseTokens.get(i);
+            final int normIndex = info.getNormIndex() < 0 ? -1 : info.getNormIndex() - normFrom;
+            final TokenInfo shifted = new TokenInfo(info.getType(),
+                                                    info.getTokenStart(),
+                                                    info.getTokenEnd(),
+                                                    i - rawFrom,
+                                                    normIndex);
+            rawTokens[i - rawFrom] = shifted;
+            if (normIndex >= 0) {
+                filteredTokensArray[normIndex] = shifted;
+            }
+        }
+    }
+
+    /**
+     * Get the offset of the first character of the segment.
+     *
+     * @return the start offset in the whole text.
+     */
+    public int getStartOffset() {
+        return rawTokens[0].getTokenStart();
+    }
+
+    @NotNull @Override public List<TokenInfo> getCachedTokens() {
+        return cachedTokens;
+    }
+
+    @NotNull @Override public List<TokenInfo> getFilteredTokens() {
+        return filteredTokens;
+    }
+
+    @NotNull @Override public CharSequence getOriginalText() {
+        return base.getOriginalText();
+    }
+
+    private class CachedTokensView extends AbstractList<TokenInfo> implements RandomAccess {
+        @Override public TokenInfo get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+            }
+            checkpoint.check();
+            return rawTokens[index];
+        }
+
+        @Override public int size() {
+            return rawTokens.length;
+        }
+    }
+
+    private class FilteredTokensView extends AbstractList<TokenInfo> implements RandomAccess {
+        @Override public TokenInfo get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+            }
+            checkpoint.check();
+            return filteredTokensArray[index];
+        }
+
+        @Override public int size() {
+            return filteredTokensArray.length;
+        }
+    }
+}
@@ -50,6 +50,15 @@ public class MarkdownGlobalSettings implements PersistentStateComponent<Element>
     /** Parsing timeout (milliseconds). */
     private int parsingTimeout = 10000;
 
+    /** The smallest allowed {@link #largeFileThreshold} (kilobytes). */
+    public static final int MIN_LARGE_FILE_THRESHOLD = 1;
+
+    /** Size (kilobytes) above which documents only get block-level parsing and highlighting. */
+    private int largeFileThreshold = 2048;
+
+    /** Whether the preview is rendered from the intellij-markdown AST of the document instead of with PegDown. */
+    private boolean parserPreview = false;
+
     /** Whether the "SmartyPants style pretty ellipsises, dashes and apostrophes" extension should be enabled. */
     private boolean smarts = false;
 
@@ -116,6 +125,59 @@ public class MarkdownGlobalSettings implements PersistentStateComponent<Element>
         }
     }
 
+    /**
+     * Get the size (kilobytes) above which documents only get block-level parsing and highlighting.
+     *
+     * @return large file threshold (kilobytes)
+     */
+    public int getLargeFileThreshold() {
+        return largeFileThreshold;
+    }
+
+    /**
+     * Set the size (kilobytes) above which documents only get block-level parsing and highlighting.
+     *
+     * @param largeFileThreshold large file threshold (kilobytes), at least {@link #MIN_LARGE_FILE_THRESHOLD}
+     */
+    public void setLargeFileThreshold(int largeFileThreshold) {
+        largeFileThreshold = Math.max(MIN_LARGE_FILE_THRESHOLD, largeFileThreshold);
+        if (this.largeFileThreshold != largeFileThreshold) {
+            this.largeFileThreshold = largeFileThreshold;
+            notifyListeners();
+        }
+    }
+
+    /**
+     * Whether a document of the specified length is above {@link #largeFileThreshold}.
+     *
+     * @param textLength the document length (characters).
+     * @return {@code true} if only the block structure of the document should get PSI elements and highlighting.
+     */
+    public boolean isLargeFile(int textLength) {
+        return textLength > largeFileThreshold * 1024L;
+    }
+
+    /**
+     * Whether the preview is rendered from the intellij-markdown AST of the document instead of with PegDown.
+     *
+     * @return {@link #parserPreview}
+     */
+    public boolean isParserPreview() {
+        return parserPreview;
+    }
+
+    /**
+     * Whether the preview is rendered from the intellij-markdown AST of the document instead of with PegDown.
+     *
+     * @param parserPreview whether the preview is rendered from the intellij-markdown AST.
+     */
+    public void setParserPreview(boolean parserPreview) {
+        if (this.parserPreview != parserPreview) {
+            this.parserPreview = parserPreview;
+            notifyListeners();
+        }
+    }
+
     /**
      * Whether the "Strikethroughs" extension should be enabled.
      *
@@ -377,6 +439,8 @@ public class MarkdownGlobalSettings implements PersistentStateComponent<Element>
     public Element getState() {
         final Element element = new Element("MarkdownSettings");
         element.setAttribute("parsingTimeout", Integer.toString(parsingTimeout));
+        element.setAttribute("largeFileThreshold", Integer.toString(largeFileThreshold));
+        element.setAttribute("parserPreview", Boolean.toString(parserPreview));
         element.setAttribute("smarts", Boolean.toString(smarts));
         element.setAttribute("quotes", Boolean.toString(quotes));
         element.setAttribute("abbreviations", Boolean.toString(abbreviations));
@@ -401,6 +465,10 @@ public class MarkdownGlobalSettings implements PersistentStateComponent<Element>
     public void loadState(@NotNull Element element) {
         String value = element.getAttributeValue("parsingTimeout");
         if (value != null) parsingTimeout = Integer.parseInt(value);
+        value = element.getAttributeValue("largeFileThreshold");
+        if (value != null) largeFileThreshold = Math.max(MIN_LARGE_FILE_THRESHOLD, Integer.parseInt(value));
+        value = element.getAttributeValue("parserPreview");
+        if (value != null) parserPreview = Boolean.parseBoolean(value);
         value = element.getAttributeValue("smarts");
         if (value != null) smarts = Boolean.parseBoolean(value);
         value = element.getAttributeValue("quotes");
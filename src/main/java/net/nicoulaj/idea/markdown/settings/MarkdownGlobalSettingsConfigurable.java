@@ -20,13 +20,21 @@
  */
 package net.nicoulaj.idea.markdown.settings;
 
+import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.options.SearchableConfigurable;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.FileContentUtil;
 import net.nicoulaj.idea.markdown.MarkdownIcons;
 import net.nicoulaj.idea.markdown.MarkdownLanguage;
+import net.nicoulaj.idea.markdown.file.MarkdownFileType;
 import org.jetbrains.annotations.Nls;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Configuration interface for {@link MarkdownGlobalSettings}.
@@ -38,6 +46,9 @@ import javax.swing.*;
  */
 public class MarkdownGlobalSettingsConfigurable implements SearchableConfigurable {
 
+    /** The step of the large file threshold spinner (kilobytes). */
+    private static final int LARGE_FILE_THRESHOLD_STEP = 256;
+
     /** The settings storage object. */
     protected MarkdownGlobalSettings globalSettings;
 
@@ -103,7 +114,16 @@ public class MarkdownGlobalSettingsConfigurable implements SearchableConfigurabl
      * @return the UI main panel.
      */
     public JComponent createComponent() {
-        if (settingsPanel == null) settingsPanel = new MarkdownSettingsPanel();
+        if (settingsPanel == null) {
+            settingsPanel = new MarkdownSettingsPanel();
+            if (settingsPanel.largeFileThresholdSpinner != null) {
+                settingsPanel.largeFileThresholdSpinner.setModel(
+                        new SpinnerNumberModel(globalSettings.getLargeFileThreshold(),
+                                               MarkdownGlobalSettings.MIN_LARGE_FILE_THRESHOLD,
+                                               Integer.MAX_VALUE,
+                                               LARGE_FILE_THRESHOLD_STEP));
+            }
+        }
         reset();
         return settingsPanel.panel;
     }
@@ -116,6 +136,8 @@ public class MarkdownGlobalSettingsConfigurable implements SearchableConfigurabl
     public boolean isModified() {
         return settingsPanel == null
                || settingsPanel.parsingTimeoutSpinner == null || globalSettings.getParsingTimeout() != (Integer) settingsPanel.parsingTimeoutSpinner.getValue()
+               || settingsPanel.largeFileThresholdSpinner == null || globalSettings.getLargeFileThreshold() != (Integer) settingsPanel.largeFileThresholdSpinner.getValue()
+               || settingsPanel.parserPreviewCheckBox == null || globalSettings.isParserPreview() != settingsPanel.parserPreviewCheckBox.isSelected()
                || settingsPanel.abbreviationsCheckBox == null || globalSettings.isAbbreviations() != settingsPanel.abbreviationsCheckBox.isSelected()
                || settingsPanel.autoLinksCheckBox == null || globalSettings.isAutoLinks() != settingsPanel.autoLinksCheckBox.isSelected()
                || settingsPanel.wikiLinksCheckBox == null || globalSettings.isWikiLinks() != settingsPanel.wikiLinksCheckBox.isSelected()
@@ -134,6 +156,10 @@ public class MarkdownGlobalSettingsConfigurable implements SearchableConfigurabl
     public void apply() {
         if (settingsPanel != null) {
             globalSettings.setParsingTimeout((Integer) settingsPanel.parsingTimeoutSpinner.getValue());
+            final int largeFileThreshold = globalSettings.getLargeFileThreshold();
+            globalSettings.setLargeFileThreshold((Integer) settingsPanel.largeFileThresholdSpinner.getValue());
+            if (globalSettings.getLargeFileThreshold() != largeFileThreshold) reparseOpenedMarkdownFiles();
+            globalSettings.setParserPreview(settingsPanel.parserPreviewCheckBox != null && settingsPanel.parserPreviewCheckBox.isSelected());
             globalSettings.setAbbreviations(settingsPanel.abbreviationsCheckBox != null && settingsPanel.abbreviationsCheckBox.isSelected());
             globalSettings.setAutoLinks(settingsPanel.autoLinksCheckBox != null && settingsPanel.autoLinksCheckBox.isSelected());
             globalSettings.setWikiLinks(settingsPanel.wikiLinksCheckBox != null && settingsPanel.wikiLinksCheckBox.isSelected());
@@ -153,6 +179,8 @@ public class MarkdownGlobalSettingsConfigurable implements SearchableConfigurabl
     public void reset() {
         if (settingsPanel != null) {
             if (settingsPanel.parsingTimeoutSpinner != null) settingsPanel.parsingTimeoutSpinner.setValue(globalSettings.getParsingTimeout());
+            if (settingsPanel.largeFileThresholdSpinner != null) settingsPanel.largeFileThresholdSpinner.setValue(globalSettings.getLargeFileThreshold());
+            if (settingsPanel.parserPreviewCheckBox != null) settingsPanel.parserPreviewCheckBox.setSelected(globalSettings.isParserPreview());
             if (settingsPanel.abbreviationsCheckBox != null) settingsPanel.abbreviationsCheckBox.setSelected(globalSettings.isAbbreviations());
             if (settingsPanel.autoLinksCheckBox != null) settingsPanel.autoLinksCheckBox.setSelected(globalSettings.isAutoLinks());
             if (settingsPanel.wikiLinksCheckBox != null) settingsPanel.wikiLinksCheckBox.setSelected(globalSettings.isWikiLinks());
@@ -168,6 +196,21 @@ public class MarkdownGlobalSettingsConfigurable implements SearchableConfigurabl
         }
     }
 
+    /**
+     * Reparse the Markdown files opened in editors, so their PSI matches the large file threshold.
+     *
+     * @see MarkdownGlobalSettings#isLargeFile(int)
+     */
+    protected static void reparseOpenedMarkdownFiles() {
+        final List<VirtualFile> files = new ArrayList<VirtualFile>();
+        for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+            for (VirtualFile file : FileEditorManager.getInstance(project).getOpenFiles()) {
+                if (file.getFileType() == MarkdownFileType.INSTANCE) files.add(file);
+            }
+        }
+        if (!files.isEmpty()) FileContentUtil.reparseFiles(null, files, false);
+    }
+
     /** Dispose UI resources. */
     public void disposeUIResources() {
         settingsPanel = null;
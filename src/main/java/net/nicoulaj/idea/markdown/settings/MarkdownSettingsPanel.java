@@ -44,6 +44,18 @@ public class MarkdownSettingsPanel {
     /** Description label for {@link #parsingTimeoutSpinner}. */
     private JLabel parsingTimeoutDescriptionLabel;
 
+    /** Form element for {@link MarkdownGlobalSettings#largeFileThreshold}. */
+    public JSpinner largeFileThresholdSpinner;
+
+    /** Description label for {@link #largeFileThresholdSpinner}. */
+    private JLabel largeFileThresholdDescriptionLabel;
+
+    /** Form element for {@link MarkdownGlobalSettings#parserPreview}. */
+    public JCheckBox parserPreviewCheckBox;
+
+    /** Description label for {@link #parserPreviewCheckBox}. */
+    private JLabel parserPreviewDescriptionLabel;
+
     /** The "extensions" form container. */
     public JPanel extensionsPanel;
 
@@ -0,0 +1,565 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.benchmark;
+
+import com.intellij.lang.PsiBuilder;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.fileTypes.SyntaxHighlighter;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.util.ArrayUtil;
+import net.nicoulaj.idea.markdown.editor.MarkdownHtmlGenerator;
+import net.nicoulaj.idea.markdown.highlighter.MarkdownSyntaxHighlighter;
+import net.nicoulaj.idea.markdown.lang.MarkdownElementType;
+import net.nicoulaj.idea.markdown.lang.lexer.MarkdownLexerAdapter;
+import net.nicoulaj.idea.markdown.lang.parser.LexerTokensCache;
+import net.nicoulaj.idea.markdown.lang.parser.MarkdownPackedTree;
+import net.nicoulaj.idea.markdown.lang.parser.MarkdownParserAdapter;
+import net.nicoulaj.idea.markdown.lang.parser.ParallelMarkdownParser;
+import net.nicoulaj.idea.markdown.lang.parser.PsiBuilderTokensCache;
+import org.intellij.markdown.ast.ASTNode;
+import org.intellij.markdown.lexer.MarkdownLexer;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.pegdown.PegDownProcessor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Measures the throughput, allocation and latency of the Markdown lexer, parser and preview on the corpus in
+ * {@code src/test/resources/net/nicoulaj/idea/markdown/benchmark}.
+ * <p/>
+ * Run {@link #main(String[])} with the test classpath, optionally passing the names of the benchmarks and documents
+ * to run. For each benchmark and document, it prints:
+ * <ul>
+ * <li>the median throughput in MB/s (the corpus is ASCII, so one character is one byte),</li>
+ * <li>the bytes allocated per KB of document,</li>
+ * <li>the median, 99th percentile and maximum latency of one iteration.</li>
+ * </ul>
+ * It then prints the footprint of each document: the number of tokens from the intellij-markdown lexer and from
+ * {@link MarkdownLexerAdapter} (which coalesces text and whitespace runs), the number of AST nodes and the heap
+ * retained by the AST per MB of document, and the number of PSI elements built from the AST in the normal mode and
+ * in the block only mode of large files.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownBenchmark {
+
+    /** The documents of the corpus. */
+    @NonNls
+    public static final String[] CORPUS = {"readme.md", "changelog.md", "nested-lists.md", "tables.md", "emphasis.md"};
+
+    /** The number of characters processed during warm up, for each benchmark and document. */
+    private static final long WARM_UP_LENGTH = 64L * 1024 * 1024;
+
+    /** The number of characters processed during measurement, for each benchmark and document. */
+    private static final long MEASURE_LENGTH = 128L * 1024 * 1024;
+
+    /** The minimum number of measured iterations, for each benchmark and document. */
+    private static final int MIN_ITERATIONS = 50;
+
+    /** A measured operation. */
+    public enum Benchmark {
+
+        /** Lex the document with {@link MarkdownLexerAdapter}. */
+        LEXER {
+            @Override int run(@NotNull CharSequence text) {
+                final MarkdownLexerAdapter lexer = new MarkdownLexerAdapter();
+                lexer.start(text);
+                int tokens = 0;
+                while (lexer.getTokenType() != null) {
+                    lexer.advance();
+                    tokens++;
+                }
+                return tokens;
+            }
+        },
+
+        /** Fill a {@link LexerTokensCache}, which holds the same tokens as the cache filled from the PSI builder. */
+        TOKENS_CACHE {
+            @Override int run(@NotNull CharSequence text) {
+                return new LexerTokensCache(text).getCachedTokens().size();
+            }
+        },
+
+        /** Map every token type to the intellij-markdown type and back with {@link MarkdownElementType}. */
+        ELEMENT_TYPE_MAPPING {
+            @Override int run(@NotNull CharSequence text) {
+                return mapElementTypes(text);
+            }
+        },
+
+        /**
+         * Run {@link #ELEMENT_TYPE_MAPPING} on {@link #CONTENTION_THREADS} threads at once, to check the mapping does
+         * not contend. Each run maps the document once per thread, so the throughput is per thread.
+         */
+        ELEMENT_TYPE_MAPPING_CONTENDED {
+            private final ExecutorService executor =
+                    Executors.newFixedThreadPool(CONTENTION_THREADS, new ThreadFactory() {
+                        @Override public Thread newThread(@NotNull Runnable runnable) {
+                            final Thread thread = new Thread(runnable, "MarkdownBenchmark");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+
+            @Override int run(@NotNull final CharSequence text) {
+                final List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(CONTENTION_THREADS);
+                for (int i = 0; i < CONTENTION_THREADS; i++) {
+                    tasks.add(new Callable<Integer>() {
+                        @Override public Integer call() {
+                            return mapElementTypes(text);
+                        }
+                    });
+                }
+                try {
+                    int hash = 0;
+                    for (Future<Integer> result : executor.invokeAll(tasks)) {
+                        hash += result.get();
+                    }
+                    return hash;
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        },
+
+        /**
+         * Lex the document with the highlighting lexer and get the text attribute keys of every token, which is the
+         * work {@link com.intellij.openapi.editor.ex.util.LexerEditorHighlighter} does per token to paint the editor.
+         */
+        HIGHLIGHTING {
+            private final SyntaxHighlighter highlighter = new MarkdownSyntaxHighlighter();
+
+            @Override int run(@NotNull CharSequence text) {
+                final Lexer lexer = highlighter.getHighlightingLexer();
+                lexer.start(text);
+                int keys = 0;
+                while (lexer.getTokenType() != null) {
+                    keys += highlighter.getTokenHighlights(lexer.getTokenType()).length;
+                    lexer.advance();
+                }
+                return keys;
+            }
+        },
+
+        /**
+         * Replay the tokens of the document through a {@link PsiBuilder} into a {@link PsiBuilderTokensCache} and build
+         * the intellij-markdown AST from it, which is the work done by the PSI parse. Both this benchmark and
+         * {@link #PARSER}, which builds the same AST from a {@link LexerTokensCache}, lex the document in each run.
+         */
+        PSI_BUILDER_PARSER {
+            @Override int run(@NotNull CharSequence text) {
+                final PsiBuilderTokensCache tokensCache = new PsiBuilderTokensCache(replayBuilder(text));
+                try {
+                    return ParallelMarkdownParser.buildMarkdownTree(tokensCache).getChildren().size();
+                } finally {
+                    tokensCache.release();
+                }
+            }
+        },
+
+        /**
+         * Replay the packed AST of the document into a {@link PsiBuilder}, building a PSI element for every node but
+         * the lazy paragraphs, which is the work the PSI parse does on top of {@link #PSI_BUILDER_PARSER}.
+         */
+        PSI_FILL {
+            @Override int run(@NotNull CharSequence text) {
+                return fillBuilder(text, false);
+            }
+        },
+
+        /**
+         * Replay the packed AST of the document into a {@link PsiBuilder} in the block only mode of large files, which
+         * builds no PSI element for inline content. The AST is still fully parsed by {@link #PSI_BUILDER_PARSER}.
+         */
+        PSI_FILL_BLOCK_ONLY {
+            @Override int run(@NotNull CharSequence text) {
+                return fillBuilder(text, true);
+            }
+        },
+
+        /** Build the intellij-markdown AST of the document. */
+        PARSER {
+            @Override int run(@NotNull CharSequence text) {
+                return MarkdownParserAdapter.buildMarkdownTree(text).getChildren().size();
+            }
+        },
+
+        /** Render the preview HTML of the document with PegDown, without extensions. */
+        PREVIEW_PEGDOWN {
+            private final PegDownProcessor processor = new PegDownProcessor();
+
+            @Override int run(@NotNull CharSequence text) {
+                return processor.markdownToHtml(text.toString()).length();
+            }
+        },
+
+        /**
+         * Parse the document and render its preview HTML with {@link MarkdownHtmlGenerator}, as the preview does after
+         * most edits: this is the latency to compare with {@link #PREVIEW_PEGDOWN}.
+         */
+        PREVIEW_PARSER {
+            @Override int run(@NotNull CharSequence text) {
+                return MarkdownHtmlGenerator.generate(text, MarkdownParserAdapter.buildMarkdownTree(text)).length();
+            }
+        },
+
+        /**
+         * Render the preview HTML of the document with {@link MarkdownHtmlGenerator} from an AST built beforehand, as
+         * the preview does when the PSI of the whole document was just parsed and its AST published.
+         */
+        PREVIEW_PARSER_REUSED_TREE {
+            @Override int run(@NotNull CharSequence text) {
+                if (previewText != text) {
+                    previewTree = MarkdownParserAdapter.buildMarkdownTree(text);
+                    previewText = text;
+                }
+                return MarkdownHtmlGenerator.generate(text, previewTree).length();
+            }
+        };
+
+        /**
+         * Run the benchmark once.
+         *
+         * @param text the document.
+         * @return a value depending on the work done, so it cannot be optimized away.
+         */
+        abstract int run(@NotNull CharSequence text);
+    }
+
+    /** The number of threads of {@link Benchmark#ELEMENT_TYPE_MAPPING_CONTENDED}. */
+    private static final int CONTENTION_THREADS = 8;
+
+    /** Prevents the JIT from dropping the benchmarked work. */
+    private static int sink;
+
+    /** The document of {@link #fillTokens} and {@link #fillTree}, which are built once per document. */
+    private static CharSequence fillText;
+    private static ReplayTokens fillTokens;
+    private static MarkdownPackedTree fillTree;
+
+    /** The document of {@link #previewTree}, which is built once per document. */
+    private static CharSequence previewText;
+    private static ASTNode previewTree;
+
+    private MarkdownBenchmark() {
+    }
+
+    /**
+     * Run the benchmarks.
+     *
+     * @param args the names of the benchmarks (see {@link Benchmark}) and documents (see {@link #CORPUS}) to run, all
+     *             of them by default.
+     * @throws IOException if the corpus cannot be read.
+     */
+    public static void main(String[] args) throws IOException {
+        final String[] benchmarks = filter(names(Benchmark.values()), args);
+        final String[] documents = filter(CORPUS, args);
+
+        System.out.println(String.format(Locale.US, "%-30s %-16s %10s %12s %10s %10s %10s",
+                                         "benchmark", "document", "MB/s", "B alloc/KB", "p50 ms", "p99 ms", "max ms"));
+        for (String benchmark : benchmarks) {
+            for (String document : documents) {
+                System.out.println(run(Benchmark.valueOf(benchmark), document, load(document)));
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format(Locale.US, "%-16s %12s %12s %12s %16s %12s %12s",
+                                         "document", "raw tokens", "tokens", "AST nodes", "AST B/MB",
+                                         "PSI", "block PSI"));
+        for (String document : documents) {
+            System.out.println(footprint(document, load(document)));
+        }
+        System.out.println("(sink: " + sink + ")");
+    }
+
+    /**
+     * Measure one benchmark on one document.
+     *
+     * @param benchmark the benchmark.
+     * @param name      the document name.
+     * @param text      the document.
+     * @return a line of report.
+     */
+    @NotNull
+    public static String run(@NotNull Benchmark benchmark, @NotNull String name, @NotNull CharSequence text) {
+        for (long processed = 0; processed < WARM_UP_LENGTH; processed += text.length()) {
+            sink += benchmark.run(text);
+        }
+
+        final int iterations = (int) Math.max(MIN_ITERATIONS, MEASURE_LENGTH / text.length());
+        final long[] durations = new long[iterations];
+        final long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            final long start = System.nanoTime();
+            sink += benchmark.run(text);
+            durations[i] = System.nanoTime() - start;
+        }
+        final long allocated = allocatedBytes() - allocatedBefore;
+
+        Arrays.sort(durations);
+        final long median = durations[iterations / 2];
+        final double megabytes = text.length() / (1024.0 * 1024.0);
+        return String.format(Locale.US, "%-30s %-16s %10.1f %12.0f %10.3f %10.3f %10.3f",
+                             benchmark.name(),
+                             name,
+                             megabytes / (median / 1e9),
+                             allocated < 0 ? Double.NaN : allocated / (iterations * text.length() / 1024.0),
+                             median / 1e6,
+                             durations[(int) Math.min(iterations - 1, Math.ceil(iterations * 0.99) - 1)] / 1e6,
+                             durations[iterations - 1] / 1e6);
+    }
+
+    /**
+     * Measure the tokens and AST footprint of one document.
+     *
+     * @param name the document name.
+     * @param text the document.
+     * @return a line of report.
+     */
+    @NotNull
+    public static String footprint(@NotNull String name, @NotNull CharSequence text) {
+        int rawTokens = 0;
+        for (MarkdownLexer lexer = new MarkdownLexer(text); lexer.getType() != null; lexer.advance()) {
+            rawTokens++;
+        }
+
+        final int tokens = Benchmark.LEXER.run(text);
+
+        final long usedBefore = usedHeap();
+        final ASTNode tree = MarkdownParserAdapter.buildMarkdownTree(text);
+        final long retained = usedHeap() - usedBefore;
+
+        return String.format(Locale.US, "%-16s %12d %12d %12d %16.0f %12d %12d",
+                             name,
+                             rawTokens,
+                             tokens,
+                             countNodes(tree),
+                             retained / (text.length() / (1024.0 * 1024.0)),
+                             fillBuilder(text, false),
+                             fillBuilder(text, true));
+    }
+
+    private static int countNodes(@NotNull ASTNode node) {
+        int count = 1;
+        for (ASTNode child : node.getChildren()) {
+            count += countNodes(child);
+        }
+        return count;
+    }
+
+    /**
+     * Map every token type of a document to the intellij-markdown type and back.
+     *
+     * @param text the document.
+     * @return a hash of the mapped types.
+     */
+    private static int mapElementTypes(@NotNull CharSequence text) {
+        final MarkdownLexerAdapter lexer = new MarkdownLexerAdapter();
+        lexer.start(text);
+        int hash = 0;
+        while (lexer.getTokenType() != null) {
+            hash += MarkdownElementType.platformType(MarkdownElementType.markdownType(lexer.getTokenType())).hashCode();
+            lexer.advance();
+        }
+        return hash;
+    }
+
+    /**
+     * Build a {@link PsiBuilder} replaying the tokens of {@link MarkdownLexerAdapter} over the specified text, as the
+     * platform builder does. Only the methods used by {@link PsiBuilderTokensCache} and
+     * {@link MarkdownParserAdapter#fill} are supported.
+     *
+     * @param text the document.
+     * @return the builder, positioned at the start of the text.
+     */
+    @NotNull
+    static PsiBuilder replayBuilder(@NotNull CharSequence text) {
+        return new ReplayTokens(text).builder();
+    }
+
+    /**
+     * Replay the packed AST of a document into a {@link PsiBuilder}, as the PSI parse does after building the AST.
+     *
+     * @param text      the document.
+     * @param blockOnly whether only the block structure gets PSI elements.
+     * @return the number of PSI elements built.
+     */
+    private static int fillBuilder(@NotNull CharSequence text, boolean blockOnly) {
+        if (fillText != text) {
+            fillTokens = new ReplayTokens(text);
+            fillTree = MarkdownPackedTree.pack(MarkdownParserAdapter.buildMarkdownTree(text));
+            fillText = text;
+        }
+        final ReplayTokens.Handler handler = fillTokens.new Handler();
+        MarkdownParserAdapter.fill(handler.builder, fillTree, blockOnly);
+        return handler.elements;
+    }
+
+    /** The tokens of a document, replayed by {@link PsiBuilder} proxies. */
+    private static class ReplayTokens {
+        @NotNull
+        private final CharSequence text;
+        @NotNull
+        private IElementType[] types = new IElementType[256];
+        @NotNull
+        private int[] starts = new int[256];
+        private int count;
+
+        public ReplayTokens(@NotNull CharSequence text) {
+            this.text = text;
+            final MarkdownLexerAdapter lexer = new MarkdownLexerAdapter();
+            for (lexer.start(text); lexer.getTokenType() != null; lexer.advance()) {
+                if (count == starts.length) {
+                    types = Arrays.copyOf(types, count * 2);
+                    starts = ArrayUtil.realloc(starts, count * 2);
+                }
+                types[count] = lexer.getTokenType();
+                starts[count] = lexer.getTokenStart();
+                count++;
+            }
+        }
+
+        @NotNull
+        public PsiBuilder builder() {
+            return new Handler().builder;
+        }
+
+        /** Handles the calls to one builder and to its markers, and counts the finished markers. */
+        private class Handler implements InvocationHandler {
+            @NotNull
+            private final PsiBuilder builder = (PsiBuilder) Proxy.newProxyInstance(
+                    PsiBuilder.class.getClassLoader(), new Class[]{PsiBuilder.class}, this);
+            private int position;
+            private int elements;
+
+            @Override public Object invoke(Object proxy, Method method, Object[] args) {
+                final String name = method.getName();
+                if ("rawLookup".equals(name)) {
+                    final int index = (Integer) args[0];
+                    return index < count ? types[index] : null;
+                } else if ("rawTokenTypeStart".equals(name)) {
+                    final int index = (Integer) args[0];
+                    return index < count ? starts[index] : text.length();
+                } else if ("getOriginalText".equals(name)) {
+                    return text;
+                } else if ("getCurrentOffset".equals(name)) {
+                    return position < count ? starts[position] : text.length();
+                } else if ("advanceLexer".equals(name)) {
+                    position++;
+                    return null;
+                } else if ("eof".equals(name)) {
+                    return position >= count;
+                } else if ("mark".equals(name)) {
+                    return Proxy.newProxyInstance(PsiBuilder.Marker.class.getClassLoader(),
+                                                  new Class[]{PsiBuilder.Marker.class}, this);
+                } else if ("done".equals(name) || "collapse".equals(name)) {
+                    elements++;
+                    return null;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        }
+    }
+
+    /** Get the heap used after a full collection. */
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Load a document of the corpus.
+     *
+     * @param name the document name.
+     * @return the document text.
+     * @throws IOException if the document cannot be read.
+     */
+    @NotNull
+    public static CharSequence load(@NotNull String name) throws IOException {
+        final InputStream stream = MarkdownBenchmark.class.getResourceAsStream(name);
+        if (stream == null) {
+            throw new IOException("Corpus document not found: " + name);
+        }
+        try {
+            return new String(FileUtil.loadBytes(stream), "UTF-8");
+        } finally {
+            stream.close();
+        }
+    }
+
+    /** Get the bytes allocated by the current thread, or -1 if the JVM does not support it. */
+    private static long allocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    @NotNull
+    private static String[] names(@NotNull Benchmark[] benchmarks) {
+        final String[] names = new String[benchmarks.length];
+        for (int i = 0; i < benchmarks.length; i++) {
+            names[i] = benchmarks[i].name();
+        }
+        return names;
+    }
+
+    /** Keep the values selected by the arguments, or all of them if none is. */
+    @NotNull
+    private static String[] filter(@NotNull String[] values, @NotNull String[] args) {
+        final String[] selected = new String[values.length];
+        int count = 0;
+        for (String value : values) {
+            for (String arg : args) {
+                if (value.equalsIgnoreCase(arg)) {
+                    selected[count++] = value;
+                    break;
+                }
+            }
+        }
+        return count == 0 ? values : Arrays.copyOf(selected, count);
+    }
+}
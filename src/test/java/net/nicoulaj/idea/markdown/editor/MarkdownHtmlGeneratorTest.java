@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.editor;
+
+import junit.framework.TestCase;
+import net.nicoulaj.idea.markdown.lang.parser.MarkdownParserAdapter;
+
+/**
+ * Tests for {@link MarkdownHtmlGenerator}.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownHtmlGeneratorTest extends TestCase {
+
+    /** Check headers, emphasis and paragraphs. */
+    public void testBlocksAndEmphasis() {
+        final String html = generate("# Title\n\nSome *emphasis* and **strong** text.\n");
+        assertTrue(html, html.contains("<h1>Title</h1>"));
+        assertTrue(html, html.contains("<p>Some <em>emphasis</em> and <strong>strong</strong> text."));
+    }
+
+    /** Check the paragraphs of lists without blank lines are not wrapped. */
+    public void testTightList() {
+        final String html = generate("- one\n- two\n");
+        assertTrue(html, html.contains("<ul>"));
+        assertTrue(html, html.contains("<li>one"));
+        assertFalse(html, html.contains("<p>"));
+    }
+
+    /** Check reference links are resolved and undefined references are left as text. */
+    public void testReferenceLinks() {
+        final String html = generate("A [link] and [missing].\n\n[link]: http://example.com \"Title\"\n");
+        assertTrue(html, html.contains("<a href=\"http://example.com\" title=\"Title\">link</a>"));
+        assertTrue(html, html.contains("[missing]"));
+    }
+
+    /** Check code is escaped. */
+    public void testCodeFence() {
+        final String html = generate("```java\nif (a < b) {}\n```\n");
+        assertTrue(html, html.contains("<pre><code class=\"java\">if (a &lt; b) {}"));
+    }
+
+    private static String generate(String text) {
+        return MarkdownHtmlGenerator.generate(text, MarkdownParserAdapter.buildMarkdownTree(text));
+    }
+}
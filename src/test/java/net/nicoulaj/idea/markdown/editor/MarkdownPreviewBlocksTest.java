@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.editor;
+
+import junit.framework.TestCase;
+import org.pegdown.PegDownProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link MarkdownPreviewBlocks}.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownPreviewBlocksTest extends TestCase {
+
+    private static final String SECTION = "# Header\n" +
+                                          "\n" +
+                                          "Some text with a [reference].\n" +
+                                          "\n" +
+                                          "- item one\n" +
+                                          "\n" +
+                                          "- item two\n" +
+                                          "\n" +
+                                          "```\n" +
+                                          "code\n" +
+                                          "\n" +
+                                          "still code\n" +
+                                          "```\n" +
+                                          "\n";
+
+    private final PegDownProcessor processor = new PegDownProcessor();
+
+    /** Check documents are split on top-level blocks only. */
+    public void testSplit() {
+        final List<String> blocks = split(SECTION);
+        assertEquals(4, blocks.size());
+        assertEquals("# Header\n\n", blocks.get(0));
+        assertEquals("Some text with a [reference].\n\n", blocks.get(1));
+        assertEquals("- item one\n\n- item two\n\n", blocks.get(2));
+        assertEquals("```\ncode\n\nstill code\n```\n\n", blocks.get(3));
+    }
+
+    /** Check editing one block of a large document only renders this block again. */
+    public void testEditRendersChangedBlockOnly() {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            builder.append(SECTION);
+        }
+        builder.append("[reference]: http://example.com\n");
+        final String text = builder.toString();
+
+        final MarkdownPreviewBlocks blocks = new MarkdownPreviewBlocks();
+        final MarkdownPreviewBlocks.Update full = blocks.computeUpdate(blocks.snapshot(text), processor);
+        assertTrue(full.isFull());
+        assertEquals(401, full.getRenderedBlockCount());
+        blocks.commit(full);
+
+        final int offset = text.indexOf("text with", text.length() / 2);
+        final String edited = text.substring(0, offset) + "More. " + text.substring(offset);
+        blocks.documentChanged(offset, "More. ".length(), edited.length());
+
+        final MarkdownPreviewBlocks.Update partial = blocks.computeUpdate(blocks.snapshot(edited), processor);
+        assertFalse(partial.isFull());
+        assertEquals(1, partial.getRenderedBlockCount());
+        assertEquals(split(edited), texts(edited, partial.getBlocks()));
+        assertTrue(MarkdownPreviewBlocks.getDocumentHtml(partial).contains("<a href=\"http://example.com\">"));
+    }
+
+    /** Check a full rendering gives the HTML of a single rendering of the document, split in blocks. */
+    public void testFullRenderingMatchesDocumentRendering() {
+        final String text = SECTION + SECTION + "[reference]: http://example.com\n";
+        final MarkdownPreviewBlocks blocks = new MarkdownPreviewBlocks();
+        final MarkdownPreviewBlocks.Update full = blocks.computeUpdate(blocks.snapshot(text), processor);
+
+        final String html = MarkdownPreviewBlocks.getDocumentHtml(full);
+        assertEquals(full.getBlocks().size() + 1, html.split("<div id=", -1).length - 1);
+        assertEquals(processor.markdownToHtml(text), html.replaceAll("</?div[^>]*>", ""));
+    }
+
+    /** Check only the definitions used by a part of the document are collected. */
+    public void testCollectReferencedDefinitions() {
+        final String definitions = MarkdownPreviewBlocks.collectDefinitions("[used]: http://example.com\n" +
+                                                                            "[Other Label]: http://example.org\n" +
+                                                                            "[unused]: http://example.net\n" +
+                                                                            "*[HTML]: Hyper Text Markup Language\n" +
+                                                                            "*[CSS]: Cascading Style Sheets\n");
+        assertEquals("[used]: http://example.com\n" +
+                     "[Other Label]: http://example.org\n" +
+                     "*[HTML]: Hyper Text Markup Language\n",
+                     MarkdownPreviewBlocks.collectReferencedDefinitions("A [link][used], [otherlabel] and HTML.",
+                                                                        definitions));
+    }
+
+    /** Check changing a definition renders the whole document again. */
+    public void testDefinitionChangeRendersAll() {
+        final String text = SECTION + "[reference]: http://example.com\n";
+        final MarkdownPreviewBlocks blocks = new MarkdownPreviewBlocks();
+        blocks.commit(blocks.computeUpdate(blocks.snapshot(text), processor));
+
+        final String edited = text.replace("example.com", "example.org");
+        blocks.documentChanged(text.indexOf("example.com"), "example.org".length(), edited.length());
+
+        assertTrue(blocks.computeUpdate(blocks.snapshot(edited), processor).isFull());
+    }
+
+    private static List<String> split(String text) {
+        final List<String> blocks = new ArrayList<String>();
+        for (int start = 0; start < text.length(); ) {
+            final int end = MarkdownPreviewBlocks.nextBlockStart(text, start);
+            blocks.add(text.substring(start, end));
+            start = end;
+        }
+        return blocks;
+    }
+
+    private static List<String> texts(String text, List<MarkdownPreviewBlocks.Block> blocks) {
+        final List<String> texts = new ArrayList<String>();
+        for (MarkdownPreviewBlocks.Block block : blocks) {
+            texts.add(text.substring(block.getStart(), block.getEnd()));
+        }
+        return texts;
+    }
+}
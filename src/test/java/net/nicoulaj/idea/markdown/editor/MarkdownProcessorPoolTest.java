@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.editor;
+
+import junit.framework.TestCase;
+import org.pegdown.Extensions;
+import org.pegdown.PegDownProcessor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for {@link MarkdownProcessorPool}.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownProcessorPoolTest extends TestCase {
+
+    private static final long TIMEOUT = 10000;
+
+    private final MarkdownProcessorPool pool = new MarkdownProcessorPool();
+
+    /** Check released processors are reused. */
+    public void testReuse() {
+        final PegDownProcessor processor = pool.acquire(Extensions.NONE, TIMEOUT);
+        pool.release(processor);
+        assertSame(processor, pool.acquire(Extensions.NONE, TIMEOUT));
+        assertEquals(1, pool.getInstanceCount());
+    }
+
+    /** Check a settings change drops the idle processors, and the leased ones once released. */
+    public void testSettingsChangeDropsProcessors() {
+        final PegDownProcessor idle = pool.acquire(Extensions.NONE, TIMEOUT);
+        final PegDownProcessor leased = pool.acquire(Extensions.NONE, TIMEOUT);
+        pool.release(idle);
+        assertEquals(1, pool.getIdleCount());
+
+        final PegDownProcessor changed = pool.acquire(Extensions.TABLES, TIMEOUT);
+        assertNotSame(idle, changed);
+        assertEquals(0, pool.getIdleCount());
+
+        pool.release(leased);
+        assertEquals(0, pool.getIdleCount());
+        pool.release(changed);
+        assertEquals(1, pool.getIdleCount());
+        assertSame(changed, pool.acquire(Extensions.TABLES, TIMEOUT));
+    }
+
+    /** Check no more than {@link MarkdownProcessorPool#MAX_IDLE} processors are kept. */
+    public void testMaxIdle() {
+        final List<PegDownProcessor> processors = new ArrayList<PegDownProcessor>();
+        for (int i = 0; i < MarkdownProcessorPool.MAX_IDLE + 2; i++) {
+            processors.add(pool.acquire(Extensions.NONE, TIMEOUT));
+        }
+        for (PegDownProcessor processor : processors) {
+            pool.release(processor);
+        }
+        assertEquals(MarkdownProcessorPool.MAX_IDLE, pool.getIdleCount());
+        assertEquals(MarkdownProcessorPool.MAX_IDLE + 2, pool.getInstanceCount());
+    }
+
+    /** Check processors leased at the same time by several threads are distinct. */
+    public void testConcurrentLeasesAreDistinct() throws Exception {
+        final int threads = 4;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<PegDownProcessor>> results = new ArrayList<Future<PegDownProcessor>>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<PegDownProcessor>() {
+                    @Override public PegDownProcessor call() throws Exception {
+                        barrier.await();
+                        final PegDownProcessor processor = pool.acquire(Extensions.NONE, TIMEOUT);
+                        // Hold the processor until every thread has one.
+                        barrier.await();
+                        return processor;
+                    }
+                }));
+            }
+
+            final Set<PegDownProcessor> processors =
+                    Collections.newSetFromMap(new IdentityHashMap<PegDownProcessor, Boolean>());
+            for (Future<PegDownProcessor> result : results) {
+                processors.add(result.get());
+            }
+            assertEquals(threads, processors.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.highlighter;
+
+import com.intellij.psi.tree.IElementType;
+import junit.framework.TestCase;
+import net.nicoulaj.idea.markdown.lang.lexer.MarkdownLexerAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link MarkdownHighlightingLexer}.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownHighlightingLexerTest extends TestCase {
+
+    private static final String TEXT = "## Header\n" +
+                                       "\n" +
+                                       "Setext\n" +
+                                       "======\n" +
+                                       "\n" +
+                                       "> quoted\n" +
+                                       "lazy\n" +
+                                       "\n" +
+                                       "1. first\n" +
+                                       "   continued\n" +
+                                       "\n" +
+                                       "   - nested\n" +
+                                       "\n" +
+                                       "paragraph\n" +
+                                       "\n" +
+                                       "```\n" +
+                                       "fenced\n" +
+                                       "\n" +
+                                       "```\n" +
+                                       "\n" +
+                                       "    verbatim\n";
+
+    /** Check each token is tagged with the block structures enclosing it. */
+    public void testLayers() {
+        assertEquals(2, layersAt("Header") & MarkdownLayeredTokenType.HEADER_LEVEL_MASK);
+        assertEquals(1, layersAt("Setext") & MarkdownLayeredTokenType.HEADER_LEVEL_MASK);
+        assertEquals(MarkdownLayeredTokenType.BLOCK_QUOTE_LAYER, layersAt("quoted"));
+        assertEquals(MarkdownLayeredTokenType.BLOCK_QUOTE_LAYER, layersAt("lazy"));
+        assertEquals(MarkdownLayeredTokenType.ORDERED_LIST_LAYER, layersAt("first"));
+        assertEquals(MarkdownLayeredTokenType.ORDERED_LIST_LAYER, layersAt("continued"));
+        assertEquals(MarkdownLayeredTokenType.BULLET_LIST_LAYER, layersAt("nested"));
+        assertEquals(0, layersAt("paragraph"));
+        assertEquals(MarkdownLayeredTokenType.CODE_FENCE_LAYER, layersAt("fenced"));
+        assertEquals(MarkdownLayeredTokenType.VERBATIM_LAYER, layersAt("verbatim"));
+    }
+
+    /** Check lexing restarted from any block boundary produces the same tokens as lexing the whole document. */
+    public void testRestartFromBlockBoundary() {
+        final List<String> tokens = lex(TEXT, 0);
+
+        int boundaries = 0;
+        final MarkdownHighlightingLexer lexer = new MarkdownHighlightingLexer();
+        lexer.start(TEXT, 0, TEXT.length(), MarkdownLexerAdapter.BLOCK_BOUNDARY_STATE);
+        for (int i = 0; lexer.getTokenType() != null; i++, lexer.advance()) {
+            if (lexer.getState() == MarkdownLexerAdapter.BLOCK_BOUNDARY_STATE && lexer.getTokenStart() > 0) {
+                assertEquals("Restarting at " + lexer.getTokenStart(),
+                             tokens.subList(i, tokens.size()),
+                             lex(TEXT, lexer.getTokenStart()));
+                boundaries++;
+            }
+        }
+        assertTrue("No block boundary found", boundaries > 0);
+    }
+
+    private static int layersAt(String word) {
+        final int offset = TEXT.indexOf(word);
+        final MarkdownHighlightingLexer lexer = new MarkdownHighlightingLexer();
+        lexer.start(TEXT, 0, TEXT.length(), MarkdownLexerAdapter.BLOCK_BOUNDARY_STATE);
+        while (lexer.getTokenType() != null) {
+            if (lexer.getTokenStart() <= offset && offset < lexer.getTokenEnd()) {
+                final IElementType type = lexer.getTokenType();
+                return type instanceof MarkdownLayeredTokenType ? ((MarkdownLayeredTokenType) type).getLayers() : 0;
+            }
+            lexer.advance();
+        }
+        throw new AssertionError("No token found at " + offset);
+    }
+
+    private static List<String> lex(String text, int startOffset) {
+        final MarkdownHighlightingLexer lexer = new MarkdownHighlightingLexer();
+        lexer.start(text, startOffset, text.length(), MarkdownLexerAdapter.BLOCK_BOUNDARY_STATE);
+
+        final List<String> tokens = new ArrayList<String>();
+        while (lexer.getTokenType() != null) {
+            tokens.add(lexer.getTokenType() + "@" + lexer.getTokenStart() + ":" + lexer.getTokenEnd());
+            lexer.advance();
+        }
+        return tokens;
+    }
+}
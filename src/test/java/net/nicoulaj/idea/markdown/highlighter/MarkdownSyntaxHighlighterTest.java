@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.highlighter;
+
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.psi.tree.IElementType;
+import junit.framework.TestCase;
+import net.nicoulaj.idea.markdown.lang.MarkdownElementTypes;
+import net.nicoulaj.idea.markdown.lang.MarkdownTokenTypes;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link MarkdownSyntaxHighlighter}.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownSyntaxHighlighterTest extends TestCase {
+
+    private final MarkdownSyntaxHighlighter highlighter = new MarkdownSyntaxHighlighter();
+
+    /** Check every lookup of a token type returns the same array. */
+    public void testHighlightsShared() {
+        assertSame(highlighter.getTokenHighlights(MarkdownTokenTypes.TEXT),
+                   highlighter.getTokenHighlights(MarkdownTokenTypes.TEXT));
+        assertSame(highlighter.getTokenHighlights(MarkdownTokenTypes.EOL),
+                   highlighter.getTokenHighlights(MarkdownTokenTypes.EOL));
+
+        final IElementType layered = MarkdownLayeredTokenType.layered(MarkdownTokenTypes.TEXT, 2);
+        assertSame(highlighter.getTokenHighlights(layered), highlighter.getTokenHighlights(layered));
+    }
+
+    /** Check layers which cannot change the colours of a token do not create layered types of their own. */
+    public void testLayersNormalized() {
+        final int verbatim = MarkdownLayeredTokenType.VERBATIM_LAYER;
+        assertSame(MarkdownLayeredTokenType.layered(MarkdownTokenTypes.CODE, verbatim),
+                   MarkdownLayeredTokenType.layered(MarkdownTokenTypes.CODE, verbatim | 3));
+
+        final int orderedList = MarkdownLayeredTokenType.ORDERED_LIST_LAYER;
+        assertSame(MarkdownLayeredTokenType.layered(MarkdownTokenTypes.TEXT, orderedList),
+                   MarkdownLayeredTokenType.layered(MarkdownTokenTypes.TEXT,
+                                                    orderedList | MarkdownLayeredTokenType.BULLET_LIST_LAYER));
+
+        assertTrue(MarkdownLayeredTokenType.getCreatedCount() <= MarkdownLayeredTokenType.MAX_LAYERED_TYPES);
+    }
+
+    /** Check the keys of each token type. */
+    public void testHighlights() {
+        assertEquals(Arrays.asList(MarkdownHighlighterColors.ITALIC_ATTR_KEY),
+                     Arrays.asList(highlighter.getTokenHighlights(MarkdownElementTypes.EMPH)));
+        assertEquals(0, highlighter.getTokenHighlights(null).length);
+
+        final IElementType layered = MarkdownLayeredTokenType.layered(
+                MarkdownTokenTypes.TEXT, MarkdownLayeredTokenType.BLOCK_QUOTE_LAYER | 2);
+        assertEquals(Arrays.asList(MarkdownHighlighterColors.TEXT_ATTR_KEY,
+                                   MarkdownHighlighterColors.BLOCK_QUOTE_ATTR_KEY,
+                                   MarkdownHighlighterColors.HEADER_LEVEL_2_ATTR_KEY),
+                     Arrays.<TextAttributesKey>asList(highlighter.getTokenHighlights(layered)));
+    }
+}
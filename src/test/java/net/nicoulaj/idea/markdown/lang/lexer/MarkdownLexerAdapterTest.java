@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.lang.lexer;
+
+import junit.framework.TestCase;
+import net.nicoulaj.idea.markdown.lang.MarkdownElementType;
+import org.intellij.markdown.MarkdownTokenTypes;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link MarkdownLexerAdapter}.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class MarkdownLexerAdapterTest extends TestCase {
+
+    /** A few blocks of every kind, repeated to build documents. */
+    private static final String SECTION = "# Header\n" +
+                                          "\n" +
+                                          "Some *emphasized* text with a [link](http://example.com).\n" +
+                                          "Second line of the paragraph.\n" +
+                                          "\n" +
+                                          "- item one\n" +
+                                          "- item two\n" +
+                                          "\n" +
+                                          "> quoted\n" +
+                                          "> text\n" +
+                                          "\n" +
+                                          "```\n" +
+                                          "code\n" +
+                                          "\n" +
+                                          "not a boundary\n" +
+                                          "```\n" +
+                                          "\n";
+
+    /** Check lexing restarted from any block boundary produces the same tokens as lexing the whole document. */
+    public void testRestartFromBlockBoundary() {
+        final String text = repeat(SECTION, 5);
+        final List<Token> tokens = lex(text, 0);
+
+        int boundaries = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            final Token token = tokens.get(i);
+            if (token.state == MarkdownLexerAdapter.BLOCK_BOUNDARY_STATE && token.start > 0) {
+                assertEquals("Restarting at " + token.start, tokens.subList(i, tokens.size()), lex(text, token.start));
+                boundaries++;
+            }
+        }
+        assertTrue("No block boundary found", boundaries > 0);
+    }
+
+    /** Check no block boundary is reported inside a fenced code block. */
+    public void testNoBoundaryInsideFence() {
+        final String text = repeat(SECTION, 2);
+        final int notABoundary = text.indexOf("not a boundary");
+
+        for (Token token : lex(text, 0)) {
+            if (token.start == notABoundary) {
+                assertEquals(MarkdownLexerAdapter.IN_FENCE_STATE, token.state);
+                return;
+            }
+        }
+        fail("No token found at " + notABoundary);
+    }
+
+    /** Check the number of tokens re-lexed after a keystroke depends on the block size, not on the document size. */
+    public void testRelexingCostBoundedByBlockSize() {
+        assertEquals(relexedTokensAfterEditInMiddle(10), relexedTokensAfterEditInMiddle(1000));
+    }
+
+    /** Check adjacent text and whitespace tokens are coalesced, and the tokens still cover the whole document. */
+    public void testAdjacentTokensCoalesced() {
+        final String text = repeat(SECTION, 3);
+        final List<Token> tokens = lex(text, 0);
+
+        int offset = 0;
+        Token previous = null;
+        for (Token token : tokens) {
+            assertEquals(offset, token.start);
+            offset = token.end;
+            if (previous != null && previous.type.equals(token.type)) {
+                assertFalse("Adjacent " + token.type + " tokens at " + token.start,
+                            token.type.equals(MarkdownElementType.platformType(MarkdownTokenTypes.TEXT).toString())
+                            || token.type.equals(
+                                    MarkdownElementType.platformType(MarkdownTokenTypes.WHITE_SPACE).toString()));
+            }
+            previous = token;
+        }
+        assertEquals(text.length(), offset);
+    }
+
+    /** Check starting the lexer neither copies the buffer nor replaces it, for the whole buffer or a window of it. */
+    public void testStartDoesNotCopyBuffer() {
+        final String text = repeat(SECTION, 20000);
+        final MarkdownLexerAdapter lexer = new MarkdownLexerAdapter();
+
+        lexer.start(text, text.length() / 2, text.length(), MarkdownLexerAdapter.BLOCK_BOUNDARY_STATE);
+        assertSame(text, lexer.getBufferSequence());
+
+        assertStartDoesNotCopy(lexer, text, 0, text.length());
+        assertStartDoesNotCopy(lexer, text, text.length() / 2, text.length());
+        assertStartDoesNotCopy(lexer, text, text.length() / 4, 3 * text.length() / 4);
+    }
+
+    /**
+     * Check starting the lexer on a window of a buffer allocates less than a copy of the window would.
+     * <p/>
+     * A copy takes at least one byte per char (a compact Latin-1 string) and two in a {@code char[]}, so the bound is a
+     * quarter of a byte per char of the window, which leaves room for the lexer objects themselves.
+     *
+     * @param lexer the lexer.
+     * @param text  the buffer.
+     * @param start the start of the window.
+     * @param end   the end of the window.
+     */
+    private static void assertStartDoesNotCopy(MarkdownLexerAdapter lexer, String text, int start, int end) {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadMXBean;
+        final long threadId = Thread.currentThread().getId();
+
+        final int starts = 100;
+        final long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < starts; i++) {
+            lexer.start(text, start, end, MarkdownLexerAdapter.BLOCK_BOUNDARY_STATE);
+        }
+        final long allocatedPerStart = (allocations.getThreadAllocatedBytes(threadId) - before) / starts;
+
+        final int windowLength = end - start;
+        assertTrue("Allocated " + allocatedPerStart + " bytes per start() for a " + windowLength + " chars window",
+                   allocatedPerStart < windowLength / 4);
+    }
+
+    /**
+     * Simulate the editor highlighter behaviour after an edit in the middle of a document: restart from the closest
+     * block boundary before the edit and lex up to the next block boundary after it.
+     *
+     * @param sections the number of {@link #SECTION} in the document.
+     * @return the number of re-lexed tokens.
+     */
+    private static int relexedTokensAfterEditInMiddle(int sections) {
+        final String text = repeat(SECTION, sections);
+        final int editOffset = text.indexOf("Second line", text.length() / 2);
+
+        int restartOffset = 0;
+        for (Token token : lex(text, 0)) {
+            if (token.start > editOffset) {
+                break;
+            }
+            if (token.state == MarkdownLexerAdapter.BLOCK_BOUNDARY_STATE) {
+                restartOffset = token.start;
+            }
+        }
+
+        final MarkdownLexerAdapter lexer = new MarkdownLexerAdapter();
+        lexer.start(text, restartOffset, text.length(), MarkdownLexerAdapter.BLOCK_BOUNDARY_STATE);
+        int count = 0;
+        while (lexer.getTokenType() != null) {
+            if (lexer.getTokenStart() > editOffset && lexer.getState() == MarkdownLexerAdapter.BLOCK_BOUNDARY_STATE) {
+                break;
+            }
+            count++;
+            lexer.advance();
+        }
+        return count;
+    }
+
+    private static List<Token> lex(String text, int startOffset) {
+        final MarkdownLexerAdapter lexer = new MarkdownLexerAdapter();
+        lexer.start(text, startOffset, text.length(), MarkdownLexerAdapter.BLOCK_BOUNDARY_STATE);
+
+        final List<Token> tokens = new ArrayList<Token>();
+        while (lexer.getTokenType() != null) {
+            tokens.add(new Token(lexer.getTokenType().toString(), lexer.getTokenStart(), lexer.getTokenEnd(), lexer.getState()));
+            lexer.advance();
+        }
+        return tokens;
+    }
+
+    private static String repeat(String s, int times) {
+        final StringBuilder builder = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    private static class Token {
+        private final String type;
+        private final int start;
+        private final int end;
+        private final int state;
+
+        private Token(String type, int start, int end, int state) {
+            this.type = type;
+            this.start = start;
+            this.end = end;
+            this.state = state;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (!(o instanceof Token)) {
+                return false;
+            }
+            final Token token = (Token) o;
+            return type.equals(token.type) && start == token.start && end == token.end && state == token.state;
+        }
+
+        @Override public int hashCode() {
+            return 31 * (31 * (31 * type.hashCode() + start) + end) + state;
+        }
+
+        @Override public String toString() {
+            return type + "[" + start + ", " + end + "]#" + state;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.lang.parser;
+
+import junit.framework.TestCase;
+import org.intellij.markdown.ast.ASTNode;
+import org.intellij.markdown.ast.LeafASTNode;
+import org.intellij.markdown.lexer.MarkdownLexer;
+import org.intellij.markdown.parser.TokensCache;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link LexerTokensCache}.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class LexerTokensCacheTest extends TestCase {
+
+    /** Inline constructs and whitespace runs, where the intellij-markdown lexer emits many adjacent tokens. */
+    private static final String TEXT = "# Header   with   spaces\n" +
+                                       "\n" +
+                                       "Plain text, *emphasis*, **strong**, `code`, [link](http://example.com \"title\")\n" +
+                                       "and an ![image](image.png) or <http://example.com>  \n" +
+                                       "with    trailing    spaces.\n" +
+                                       "\n" +
+                                       "- item   one\n" +
+                                       "  - nested   *item*\n" +
+                                       "\n" +
+                                       ">  quoted   text\n" +
+                                       "\n" +
+                                       "[ref]:   http://example.com   \"title\"\n";
+
+    /** Check coalescing tokens gives fewer tokens but the same composite nodes as the raw lexer tokens. */
+    public void testCoalescingKeepsStructure() {
+        final LexerTokensCache coalesced = new LexerTokensCache(TEXT);
+        final RawTokensCache raw = new RawTokensCache(TEXT);
+
+        assertTrue("No token was coalesced", coalesced.getCachedTokens().size() < raw.getCachedTokens().size());
+        assertEquals(dumpComposites(MarkdownParserAdapter.buildMarkdownTree(raw)),
+                     dumpComposites(MarkdownParserAdapter.buildMarkdownTree(coalesced)));
+    }
+
+    @NotNull
+    private static String dumpComposites(@NotNull ASTNode node) {
+        final StringBuilder builder = new StringBuilder();
+        dumpComposites(node, 0, builder);
+        return builder.toString();
+    }
+
+    private static void dumpComposites(@NotNull ASTNode node, int depth, @NotNull StringBuilder builder) {
+        if (node instanceof LeafASTNode) {
+            return;
+        }
+        for (int i = 0; i < depth; i++) {
+            builder.append("  ");
+        }
+        builder.append(node.getType()).append(" [").append(node.getStartOffset()).append(", ")
+               .append(node.getEndOffset()).append(")\n");
+        for (ASTNode child : node.getChildren()) {
+            dumpComposites(child, depth + 1, builder);
+        }
+    }
+
+    /** Tokens of the intellij-markdown lexer, as they are before coalescing. */
+    private static class RawTokensCache extends TokensCache {
+        @NotNull
+        private final List<TokenInfo> tokens = new ArrayList<TokenInfo>();
+        @NotNull
+        private final CharSequence text;
+
+        private RawTokensCache(@NotNull CharSequence text) {
+            this.text = text;
+            final MarkdownLexer lexer = new MarkdownLexer(text);
+            for (int i = 0; lexer.getType() != null; i++) {
+                tokens.add(new TokenInfo(lexer.getType(), lexer.getTokenStart(), lexer.getTokenEnd(), i, i));
+                lexer.advance();
+            }
+        }
+
+        @NotNull @Override public List<TokenInfo> getCachedTokens() {
+            return tokens;
+        }
+
+        @NotNull @Override public List<TokenInfo> getFilteredTokens() {
+            return tokens;
+        }
+
+        @NotNull @Override public CharSequence getOriginalText() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2011-2015 Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.nicoulaj.idea.markdown.lang.parser;
+
+import junit.framework.TestCase;
+import org.intellij.markdown.ast.ASTNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for {@link ParallelMarkdownParser}.
+ *
+ * @author Julien Nicoulaud <julien.nicoulaud@gmail.com>
+ * @since 0.10
+ */
+public class ParallelMarkdownParserTest extends TestCase {
+
+    /** Blocks of every kind, including ones which continue over blank lines. */
+    private static final String SECTION = "Title\n" +
+                                          "=====\n" +
+                                          "\n" +
+                                          "Some *emphasized* text with a [link][ref].\n" +
+                                          "Second line of the paragraph.\n" +
+                                          "\n" +
+                                          "- loose item\n" +
+                                          "\n" +
+                                          "- second loose item\n" +
+                                          "\n" +
+                                          "  continued\n" +
+                                          "\n" +
+                                          "1. ordered\n" +
+                                          "2. list\n" +
+                                          "\n" +
+                                          "> quoted\n" +
+                                          "text\n" +
+                                          "\n" +
+                                          "```\n" +
+                                          "code\n" +
+                                          "\n" +
+                                          "still code\n" +
+                                          "```\n" +
+                                          "\n" +
+                                          "<div>\n" +
+                                          "html\n" +
+                                          "</div>\n" +
+                                          "\n" +
+                                          "    indented code\n" +
+                                          "\n" +
+                                          "[ref]: http://example.com\n" +
+                                          "\n";
+
+    /** Check the stitched tree of a segmented parse is exactly the tree of a sequential parse. */
+    public void testSegmentedParseMatchesSequentialParse() {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append(SECTION);
+        }
+        final LexerTokensCache tokensCache = new LexerTokensCache(text);
+
+        final List<TokensCacheSegment> segments = ParallelMarkdownParser.split(tokensCache, SECTION.length());
+        assertTrue("Document was not split", segments.size() > 1);
+
+        assertEquals(dump(MarkdownParserAdapter.buildMarkdownTree(tokensCache)),
+                     dump(ParallelMarkdownParser.buildSegmentedTree(tokensCache, SECTION.length())));
+    }
+
+    /** Check references are parsed the same when their definition is in another segment. */
+    public void testReferenceDefinedInAnotherSegment() {
+        final String filler = SECTION.replace("[ref]: http://example.com\n\n", "");
+        final StringBuilder text = new StringBuilder("A [link][other] and [other].\n\n");
+        for (int i = 0; i < 5; i++) {
+            text.append(filler);
+        }
+        text.append("[other]: http://example.org\n");
+        final LexerTokensCache tokensCache = new LexerTokensCache(text);
+
+        final List<TokensCacheSegment> segments = ParallelMarkdownParser.split(tokensCache, filler.length());
+        assertTrue("Use and definition are in the same segment",
+                   segments.size() > 1 && segments.get(1).getStartOffset() <= text.indexOf("[other]:"));
+
+        assertEquals(dump(MarkdownParserAdapter.buildMarkdownTree(tokensCache)),
+                     dump(ParallelMarkdownParser.buildSegmentedTree(tokensCache, filler.length())));
+    }
+
+    /** Check segments parsed on concurrent threads give the tree of a sequential parse. */
+    public void testConcurrentSegmentParse() throws Exception {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append(SECTION);
+        }
+        final LexerTokensCache tokensCache = new LexerTokensCache(text);
+        final List<TokensCacheSegment> segments = ParallelMarkdownParser.split(tokensCache, SECTION.length());
+
+        final List<Callable<ASTNode>> tasks = new ArrayList<Callable<ASTNode>>();
+        for (final TokensCacheSegment segment : segments) {
+            tasks.add(new Callable<ASTNode>() {
+                @Override public ASTNode call() {
+                    return MarkdownParserAdapter.buildMarkdownTree(segment);
+                }
+            });
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final ASTNode[] trees = new ASTNode[segments.size()];
+        try {
+            final List<Future<ASTNode>> results = executor.invokeAll(tasks);
+            for (int i = 0; i < trees.length; i++) {
+                trees[i] = results.get(i).get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(dump(MarkdownParserAdapter.buildMarkdownTree(tokensCache)),
+                     dump(ParallelMarkdownParser.stitch(trees)));
+    }
+
+    /** Check segments cover all the tokens in order. */
+    public void testSegmentsCoverAllTokens() {
+        final LexerTokensCache tokensCache = new LexerTokensCache(SECTION + SECTION + SECTION);
+
+        int tokens = 0;
+        for (TokensCacheSegment segment : ParallelMarkdownParser.split(tokensCache, 1)) {
+            assertEquals(tokensCache.getCachedTokens().get(tokens).getTokenStart(), segment.getStartOffset());
+            tokens += segment.getCachedTokens().size();
+        }
+        assertEquals(tokensCache.getCachedTokens().size(), tokens);
+    }
+
+    @NotNull
+    private static String dump(@NotNull ASTNode node) {
+        final StringBuilder builder = new StringBuilder();
+        dump(node, 0, builder);
+        return builder.toString();
+    }
+
+    private static void dump(@NotNull ASTNode node, int depth, @NotNull StringBuilder builder) {
+        for (int i = 0; i < depth; i++) {
+            builder.append("  ");
+        }
+        builder.append(node.getType()).append(" [").append(node.getStartOffset()).append(", ")
+               .append(node.getEndOffset()).append(")\n");
+        for (ASTNode child : node.getChildren()) {
+            dump(child, depth + 1, builder);
+        }
+    }
+}